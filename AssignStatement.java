@@ -0,0 +1,48 @@
+import java.util.Hashtable;
+
+class AssignStatement extends Statement
+{
+  String lhs;
+  Expression rhs;
+
+  AssignStatement(String lhs, String rhs) throws SyntaxException
+  {
+    this(lhs, rhs, new Hashtable<String,Expression>());
+  }
+
+  AssignStatement(String lhs, String rhs, Hashtable<String,Expression> nodes)
+    throws SyntaxException
+  {
+    this.lhs = lhs;
+    this.rhs = Expression.parse(rhs, nodes);
+  }
+
+  String show()
+  {
+    return lhs + " gets " + rhs.show();
+  }
+
+  public void exec(Calc calc) throws ExecutionException
+  {
+    exec(calc, new Evaluation());
+  }
+
+  // exec: The same, as part of the run of a Program
+  void exec(Calc calc, Evaluation run) throws ExecutionException
+  {
+    calc.bindVariable(lhs, rhs.eval(calc, run));
+  }
+
+  boolean barrier() { return false;}
+
+  // reads: The names of the variables and constants read
+  Hashtable<String,String> reads()
+  {
+    Hashtable<String,String> names = new Hashtable<String,String>();
+    rhs.identifiers(names);
+    return names;
+  }
+
+  // writes: The name of the variable bound
+  String writes() { return lhs;}
+}
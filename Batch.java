@@ -0,0 +1,291 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/* Batch runs calculator scripts without a display:
+ *
+ *   java Batch [options] [script ...]
+ *
+ * Each script (or standard input, if none is named or the name
+ * is "-") is read a line at a time, so scripts of any length can
+ * be run.  A line holds statements as in the GUI's script panel,
+ * separated by commas.  All the scripts run in one calculator,
+ * one statement at a time, and stop at the first error.
+ *
+ * Options:
+ *   -p name         print variable name at the end (repeatable)
+ *   -w name=file    write variable name to file at the end
+ *   -t              report each statement and its time on stderr
+ *   -time ms        stop if the whole run takes longer than ms
+ *   -rows n         stop if any result has more than n rows
+ *   -map dir        keep the results of -o, #, => and & in files
+ *                   in dir, mapped rather than on the heap
+ *
+ * Exit status:
+ *   0   success
+ *   1   syntax error in a script
+ *   2   error while executing a statement, or an unknown variable
+ *   3   stopped by -time or -rows
+ *   64  bad command line
+ *   74  a script or output file could not be read or written
+ */
+public class Batch
+{
+  static final int OK = 0;
+  static final int SYNTAX = 1;
+  static final int EXECUTION = 2;
+  static final int BUDGET = 3;
+  static final int USAGE = 64;
+  static final int IO = 74;
+
+  private Calc calc;
+  private Budget budget;
+  private boolean timings;
+  private PrintStream out, err;
+
+  Batch(Calc calc, Budget budget, boolean timings,
+        PrintStream out, PrintStream err)
+  {
+    this.calc = calc;
+    this.budget = budget;
+    this.timings = timings;
+    this.out = out;
+    this.err = err;
+  }
+
+  public static void main(String args[])
+  {
+    System.exit(run(args, System.out, System.err));
+  }
+
+  // run: Does everything main does, and returns the exit status
+  static int run(String args[], PrintStream out, PrintStream err)
+  {
+    Vector<String> scripts = new Vector<String>();
+    Vector<String> prints = new Vector<String>();
+    Vector<String> writes = new Vector<String>();   // name, file, name, file, ...
+    boolean timings = false;
+    long timeLimit = 0, rowLimit = 0;
+    File mapDirectory = null;
+
+    try {
+      for(int i=0;i<args.length;i++) {
+        String arg = args[i];
+        if(arg.equals("-p")) {
+          prints.addElement(value(args, ++i));
+        }
+        else if(arg.equals("-w")) {
+          String spec = value(args, ++i);
+          int eq = spec.indexOf('=');
+          if(eq <= 0 || eq == spec.length()-1)
+            throw new IllegalArgumentException("-w needs name=file");
+          writes.addElement(spec.substring(0, eq));
+          writes.addElement(spec.substring(eq+1));
+        }
+        else if(arg.equals("-t")) {
+          timings = true;
+        }
+        else if(arg.equals("-time")) {
+          timeLimit = Long.parseLong(value(args, ++i));
+        }
+        else if(arg.equals("-rows")) {
+          rowLimit = Long.parseLong(value(args, ++i));
+        }
+        else if(arg.equals("-map")) {
+          mapDirectory = new File(value(args, ++i));
+          if(!mapDirectory.isDirectory())
+            throw new IllegalArgumentException(mapDirectory+
+                                               " is not a directory");
+        }
+        else if(arg.startsWith("-") && !arg.equals("-")) {
+          throw new IllegalArgumentException("unknown option "+arg);
+        }
+        else scripts.addElement(arg);
+      }
+      if(timeLimit < 0 || rowLimit < 0)
+        throw new IllegalArgumentException("limits can't be negative");
+    }
+    catch(IllegalArgumentException x) {   // NumberFormatException too
+      err.println("Batch: "+x.getMessage());
+      err.println("usage: java Batch [-p name] [-w name=file] [-t]"+
+                  " [-time ms] [-rows n] [-map dir] [script ...]");
+      return USAGE;
+    }
+    if(scripts.size() == 0) scripts.addElement("-");
+
+    Calc calc = new Calc();
+    calc.setMapDirectory(mapDirectory);
+    Batch batch = new Batch(calc, new Budget(timeLimit, rowLimit),
+                            timings, out, err);
+
+    for(Enumeration<String> e=scripts.elements(); e.hasMoreElements(); ) {
+      int status = batch.runScript(e.nextElement());
+      if(status != OK) return status;
+    }
+
+    for(Enumeration<String> e=prints.elements(); e.hasMoreElements(); ) {
+      int status = batch.print(e.nextElement());
+      if(status != OK) return status;
+    }
+
+    for(int i=0;i<writes.size();i+=2) {
+      int status = batch.write(writes.elementAt(i), writes.elementAt(i+1));
+      if(status != OK) return status;
+    }
+    return OK;
+  }
+
+  private static String value(String args[], int i)
+  {
+    if(i >= args.length)
+      throw new IllegalArgumentException(args[i-1]+" needs a value");
+    return args[i];
+  }
+
+  // runScript: Runs the named script (or standard input),
+  // and returns the exit status.
+  int runScript(String name)
+  {
+    String where = name.equals("-") ? "<stdin>" : name;
+    BufferedReader in = null;
+    try {
+      Reader reader = name.equals("-") ? new InputStreamReader(System.in)
+                                       : new FileReader(name);
+      in = new BufferedReader(reader);
+
+      int lineNumber = 0;
+      String line;
+      while((line = in.readLine()) != null) {
+        lineNumber++;
+        int status = runLine(line, where+":"+lineNumber);
+        if(status != OK) return status;
+      }
+      return OK;
+    }
+    catch(IOException x) {
+      err.println(where+": "+x.getMessage());
+      return IO;
+    }
+    finally {
+      try {
+        if(in != null && !name.equals("-")) in.close();
+      }
+      catch(IOException x) {}
+    }
+  }
+
+  // runLine: Runs the statements of one line, one at a time.
+  private int runLine(String line, String where)
+  {
+    Program program;
+    try {
+      program = new Program(line);
+    }
+    catch(SyntaxException x) {
+      err.println(where+": "+x.getMessage());
+      return SYNTAX;
+    }
+
+    for(Enumeration<Statement> e=program.statements.elements();
+        e.hasMoreElements(); ) {
+      Statement s = e.nextElement();
+      long start = System.nanoTime();
+      try {
+        calc.execute(s, budget);
+      }
+      catch(BudgetExceededException x) {
+        err.println(where+": "+s.show()+": "+x.getMessage());
+        return BUDGET;
+      }
+      catch(ExecutionException x) {
+        err.println(where+": "+s.show()+": "+x.getMessage());
+        return EXECUTION;
+      }
+      catch(RuntimeException x) {
+        err.println(where+": "+s.show()+": "+x);
+        return EXECUTION;
+      }
+
+      if(timings) {
+        double ms = (System.nanoTime() - start)/1e6;
+        err.println(where+": "+s.show()+" ("+ms+" ms)");
+      }
+    }
+    return OK;
+  }
+
+  // print: Prints the named variable, with a line giving its
+  // size, on standard output.  Rows are printed as they are read,
+  // so a mapped result is never held on the heap.
+  int print(String name)
+  {
+    try {
+      Chu chu = value(name);
+      out.println(name+": K="+chu.K()+", "+
+                  chu.nrows()+" rows, "+chu.ncols()+" columns");
+      Writer w = new BufferedWriter(new OutputStreamWriter(out));
+      chu.unparse(w);
+      w.flush();
+      return OK;
+    }
+    catch(ExecutionException x) {
+      err.println(x.getMessage());
+      return EXECUTION;
+    }
+    catch(Chu.ParseException x) {
+      err.println(name+": "+x.getMessage());
+      return EXECUTION;
+    }
+    catch(IOException x) {
+      err.println(name+": "+x.getMessage());
+      return IO;
+    }
+  }
+
+  // write: Writes the named variable to file, in the form a
+  // script or the GUI's editor reads (one row per line), as its
+  // rows are read.
+  int write(String name, String file)
+  {
+    try {
+      Chu chu = value(name);
+      Writer w = new BufferedWriter(new FileWriter(file));
+      try {
+        chu.unparse(w);
+      }
+      finally {
+        w.close();
+      }
+      return OK;
+    }
+    catch(ExecutionException x) {
+      err.println(x.getMessage());
+      return EXECUTION;
+    }
+    catch(Chu.ParseException x) {
+      err.println(name+": "+x.getMessage());
+      return EXECUTION;
+    }
+    catch(IOException x) {
+      err.println(file+": "+x.getMessage());
+      return IO;
+    }
+  }
+
+  private Chu value(String name) throws ExecutionException
+  {
+    Chu chu = calc.lookupVariable(name);
+    if(chu == null) throw new ExecutionException(name+" is undefined");
+    return chu;
+  }
+}
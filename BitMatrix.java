@@ -0,0 +1,214 @@
+// A BitMatrix stores a matrix with entries in {0,1} as
+// one bitset per row.  Entry (r,c) is bit (c%64) of word
+// (c/64) of row r.  Bits past the end of a row are always
+// zero, so whole rows can be compared and combined a word
+// at a time.
+class BitMatrix extends Matrix
+{
+  private int ncols;
+  private long rows[][];
+
+  /* constructor */
+  BitMatrix(long rows[][], int ncols)
+  {
+    this.ncols = ncols;
+    this.rows = rows;
+  }
+
+  // words: Number of words needed for a row of the given length
+  static int words(int length)
+  {
+    return (length+63)>>>6;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return rows.length;}
+  int ncols() { return ncols;}
+
+  int entry(int r, int c)
+  {
+    return (int)(rows[r][c>>>6] >>> c) & 1;
+  }
+
+  boolean bits() { return true;}
+
+  // bits: Returns row r itself; the caller must not change it.
+  long[] bits(int r) { return rows[r];}
+
+  void getRow(int r, int line[])
+  {
+    long row[] = rows[r];
+    for(int c=0;c<ncols;c++)
+      line[c] = (int)(row[c>>>6] >>> c) & 1;
+  }
+
+  int compareRows(int r1, int r2)
+  {
+    return compare(rows[r1], rows[r2]);
+  }
+
+  // compare: Lexicographic comparison of two packed rows.
+  // The first differing entry is the lowest differing bit.
+  static int compare(long row1[], long row2[])
+  {
+    for(int w=0;w<row1.length;w++) {
+      long x = row1[w] ^ row2[w];
+      if(x != 0)
+        return ((row1[w] & (x & -x)) != 0) ? 1 : -1;
+    }
+    return 0;
+  }
+
+  /* Packing */
+
+  // pack: Converts a line of 0s and 1s to a packed row
+  static long[] pack(int line[], int length)
+  {
+    long row[] = new long[words(length)];
+    for(int c=0;c<length;c++)
+      if(line[c] != 0) row[c>>>6] |= 1L << c;
+    return row;
+  }
+
+  // pack: Converts nrows*ncols 0s and 1s, row after row
+  static BitMatrix pack(int cells[], int nrows, int ncols)
+  {
+    long rows[][] = new long[nrows][words(ncols)];
+    for(int r=0, i=0; r<nrows; r++) {
+      long row[] = rows[r];
+      for(int c=0; c<ncols; c++, i++)
+        if(cells[i] != 0) row[c>>>6] |= 1L << c;
+    }
+    return new BitMatrix(rows, ncols);
+  }
+
+  // pack: Returns matrix, whose entries must all be 0 or 1, as a
+  // BitMatrix, packing its rows if they are not packed already
+  static BitMatrix pack(Matrix matrix)
+  {
+    if(matrix.bits()) return (BitMatrix)matrix.rowMajor();
+
+    int ncols = matrix.ncols();
+    int line[] = new int[ncols];
+    long rows[][] = new long[matrix.nrows()][];
+    for(int r=0;r<rows.length;r++) {
+      matrix.getRow(r, line);
+      rows[r] = pack(line, ncols);
+    }
+    return new BitMatrix(rows, ncols);
+  }
+
+  // copyBits: Ors the first length bits of src into dst,
+  // starting at bit offset of dst.
+  static void copyBits(long src[], int length, long dst[], int offset)
+  {
+    int shift = offset & 63;
+    int base = offset >>> 6;
+    for(int w=0;w<words(length);w++) {
+      long x = src[w];
+      dst[base+w] |= x << shift;
+      if(shift != 0 && base+w+1 < dst.length)
+        dst[base+w+1] |= x >>> (64-shift);
+    }
+  }
+
+  /* Builders */
+
+  // copyTranspose: Works on 64x64 blocks of bits.  Each block
+  // is gathered from 64 rows, transposed in registers, and
+  // scattered to 64 rows of the result.
+  Matrix copyTranspose()
+  {
+    int nrows = rows.length;
+    long new_rows[][] = new long[ncols][words(nrows)];
+    long block[] = new long[64];
+
+    for(int r0=0;r0<nrows;r0+=64) {
+      int r1 = Math.min(r0+64, nrows);
+      for(int w=0;w<words(ncols);w++) {
+        for(int i=0;i<64;i++)
+          block[i] = (r0+i < r1) ? rows[r0+i][w] : 0;
+        transpose64(block);
+        int c1 = Math.min((w+1)<<6, ncols);
+        for(int c=w<<6;c<c1;c++)
+          new_rows[c][r0>>>6] = block[c & 63];
+      }
+    }
+    return new BitMatrix(new_rows, nrows);
+  }
+
+  // transpose64: Transposes a 64x64 matrix of bits in place,
+  // by swapping ever smaller off-diagonal blocks.
+  private static void transpose64(long a[])
+  {
+    long m = 0x00000000FFFFFFFFL;
+    for(int j=32; j!=0; j>>=1, m^=(m << j)) {
+      for(int k=0; k<64; k=((k | j) + 1) & ~j) {
+        long t = ((a[k] >>> j) ^ a[k | j]) & m;
+        a[k] ^= t << j;
+        a[k | j] ^= t;
+      }
+    }
+  }
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    // Whole rows are shared when all columns are kept in order
+    if(ncols == this.ncols) {
+      boolean identity = true;
+      for(int c=0; c<ncols; c++) identity &= (colIndex[c] == c);
+      if(identity) {
+        long new_rows[][] = new long[nrows][];
+        for(int r=0; r<nrows; r++) new_rows[r] = rows[rowIndex[r]];
+        return new BitMatrix(new_rows, ncols);
+      }
+    }
+
+    long new_rows[][] = new long[nrows][words(ncols)];
+    for(int r=0; r<nrows; r++) {
+      long row[] = rows[rowIndex[r]];
+      long new_row[] = new_rows[r];
+      for(int c=0; c<ncols; c++) {
+        int k = colIndex[c];
+        new_row[c>>>6] |= ((row[k>>>6] >>> k) & 1L) << c;
+      }
+    }
+    return new BitMatrix(new_rows, ncols);
+  }
+
+  // concat: Each row of the result is a row of A followed by a
+  // row of B, in the order used by Chu.product.
+  static BitMatrix concat(BitMatrix A, BitMatrix B)
+  {
+    int ncols = A.ncols + B.ncols;
+    long new_rows[][] = new long[A.rows.length * B.rows.length][];
+
+    int r=0;
+    for(int ar=0;ar<A.rows.length;ar++) {
+      for(int br=0;br<B.rows.length;br++) {
+        long row[] = new long[words(ncols)];
+        System.arraycopy(A.rows[ar], 0, row, 0, A.rows[ar].length);
+        copyBits(B.rows[br], B.ncols, row, A.ncols);
+        new_rows[r++] = row;
+      }
+    }
+    return new BitMatrix(new_rows, ncols);
+  }
+
+  // blocks: A in the upper left, B in the lower right,
+  // zeros elsewhere, as used by Chu.choice.
+  static BitMatrix blocks(BitMatrix A, BitMatrix B)
+  {
+    int ncols = A.ncols + B.ncols;
+    int nrows = A.rows.length + B.rows.length;
+    long new_rows[][] = new long[nrows][words(ncols)];
+
+    for(int ar=0;ar<A.rows.length;ar++)
+      System.arraycopy(A.rows[ar], 0, new_rows[ar], 0, A.rows[ar].length);
+    for(int br=0;br<B.rows.length;br++)
+      copyBits(B.rows[br], B.ncols, new_rows[A.rows.length+br], A.ncols);
+
+    return new BitMatrix(new_rows, ncols);
+  }
+}
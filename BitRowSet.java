@@ -0,0 +1,99 @@
+// A BitRowSet holds a set of packed rows (as in BitMatrix), all
+// of the same number of words, in the order they were added.
+// The rows are kept end to end in one array of longs, and found
+// again through an open addressing hash table of their indexes,
+// so adding and looking up rows allocates nothing.
+class BitRowSet
+{
+  private int words;     // words per row
+  private int size;      // number of rows
+  private long store[];  // row i is store[i*words .. (i+1)*words-1]
+  private int table[];   // row index+1, or 0 for an empty slot
+
+  /* constructor */
+  BitRowSet(int words)
+  {
+    this.words = words;
+    this.size = 0;
+    this.store = new long[16*words];
+    this.table = new int[32];
+  }
+
+  /* inspectors */
+  final int size() { return size;}
+  final int words() { return words;}
+
+  // word: Returns word w of row i
+  final long word(int i, int w) { return store[i*words + w];}
+
+  // find: Returns the index of the row held in line[offset..],
+  // or -1 if it is not in the set.
+  int find(long line[], int offset)
+  {
+    int mask = table.length-1;
+    for(int slot=hash(line, offset) & mask; ; slot=(slot+1) & mask) {
+      int entry = table[slot];
+      if(entry == 0) return -1;
+      if(matches(entry-1, line, offset)) return entry-1;
+    }
+  }
+
+  /* mutators */
+
+  // add: Appends the row held in line[offset..], which must not
+  // already be in the set, and returns its index.
+  int add(long line[], int offset)
+  {
+    if(2*(size+1) > table.length) rehash(2*table.length);
+    if((size+1)*words > store.length) {
+      long new_store[] = new long[2*store.length + words];
+      System.arraycopy(store, 0, new_store, 0, size*words);
+      store = new_store;
+    }
+
+    System.arraycopy(line, offset, store, size*words, words);
+    insert(size);
+    return size++;
+  }
+
+  // toMatrix: Returns the rows, in order, as a BitMatrix
+  BitMatrix toMatrix(int ncols)
+  {
+    long rows[][] = new long[size][words];
+    for(int i=0;i<size;i++)
+      System.arraycopy(store, i*words, rows[i], 0, words);
+    return new BitMatrix(rows, ncols);
+  }
+
+  /* Internal utilities */
+
+  private boolean matches(int i, long line[], int offset)
+  {
+    int base = i*words;
+    for(int w=0;w<words;w++)
+      if(store[base+w] != line[offset+w]) return false;
+    return true;
+  }
+
+  private void insert(int i)
+  {
+    int mask = table.length-1;
+    int slot = hash(store, i*words) & mask;
+    while(table[slot] != 0) slot = (slot+1) & mask;
+    table[slot] = i+1;
+  }
+
+  private void rehash(int length)
+  {
+    table = new int[length];
+    for(int i=0;i<size;i++) insert(i);
+  }
+
+  private int hash(long line[], int offset)
+  {
+    long h = 0;
+    for(int w=0;w<words;w++)
+      h = (h + line[offset+w]) * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+}
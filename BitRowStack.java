@@ -0,0 +1,84 @@
+// A BitRowStack is a stack of packed rows that holds at most one
+// copy of each row.  Pushing a row that is already on the stack
+// moves it to the top.  (For a search that ignores rows it has
+// already seen, this never changes the order rows are handled in,
+// but it keeps the stack no bigger than the number of distinct
+// rows.)  Rows are stored once each in a BitRowSet; the stack
+// itself holds their indexes.
+class BitRowStack
+{
+  private BitRowSet rows;   // every row ever pushed
+  private int where[];      // stack position of each row, or -1
+  private int stack[];      // row indexes; -1 marks a moved row
+  private int top;          // number of stack slots in use
+  private int moved;        // number of slots holding -1
+
+  /* constructor */
+  BitRowStack(int words)
+  {
+    rows = new BitRowSet(words);
+    where = new int[16];
+    stack = new int[16];
+    top = 0;
+    moved = 0;
+  }
+
+  /* inspectors */
+  final boolean empty() { return top == moved;}
+
+  /* mutators */
+
+  void push(long line[])
+  {
+    int i = rows.find(line, 0);
+    if(i < 0) {
+      i = rows.add(line, 0);
+      if(i == where.length) where = grow(where);
+    }
+    else if(where[i] >= 0) {
+      stack[where[i]] = -1;
+      moved++;
+    }
+
+    if(top == stack.length) {
+      if(2*moved > top) compact();
+      else stack = grow(stack);
+    }
+    where[i] = top;
+    stack[top++] = i;
+  }
+
+  // pop: Copies the top row into line and removes it
+  void pop(long line[])
+  {
+    while(stack[top-1] < 0) {
+      top--;
+      moved--;
+    }
+    int i = stack[--top];
+    where[i] = -1;
+    for(int w=0;w<line.length;w++) line[w] = rows.word(i,w);
+  }
+
+  /* Internal utilities */
+
+  // compact: Squeezes out the slots of moved rows
+  private void compact()
+  {
+    int new_top = 0;
+    for(int s=0;s<top;s++) {
+      if(stack[s] < 0) continue;
+      where[stack[s]] = new_top;
+      stack[new_top++] = stack[s];
+    }
+    top = new_top;
+    moved = 0;
+  }
+
+  private static int[] grow(int array[])
+  {
+    int new_array[] = new int[2*array.length];
+    System.arraycopy(array, 0, new_array, 0, array.length);
+    return new_array;
+  }
+}
@@ -0,0 +1,128 @@
+// A Budget limits one calculation: how long it may run, and how
+// many rows any one result may have.  It can also be canceled
+// from another thread.  A Budget made from another (its parent)
+// is spent along with the parent, but can be canceled without
+// canceling the parent, to stop one part of a calculation.
+//   The thread running a calculation holds its Budget (see enter),
+// and so must the threads of any pool the calculation hands work
+// to.  Long loops call check() every so often, and code building
+// a result calls checkRows() as it grows.  When the budget is
+// spent these throw a Budget.Exceeded, which unwinds the search;
+// Calc turns it into a BudgetExceededException.
+class Budget
+{
+  private static final ThreadLocal<Budget> current = new ThreadLocal<Budget>();
+
+  private Budget parent;   // or null
+  private long timeLimit;  // milliseconds, or 0 for no limit
+  private long rowLimit;   // rows, or 0 for no limit
+  private long start, deadline;
+  private volatile boolean canceled;
+
+  // How far the calculation has got: search steps taken, and
+  // the most rows seen in a result.  (Threads update these
+  // without locking, so they are approximate.)
+  private volatile long steps, rows;
+
+  /* Constructor */
+
+  Budget(long timeLimit, long rowLimit)
+  {
+    this.timeLimit = (timeLimit < 0 ? 0 : timeLimit);
+    this.rowLimit = (rowLimit < 0 ? 0 : rowLimit);
+    start = System.nanoTime();
+    deadline = start + this.timeLimit*1000000L;
+  }
+
+  // Budget: A part of parent (which may be null, for no limits)
+  Budget(Budget parent)
+  {
+    this(0, 0);
+    this.parent = parent;
+  }
+
+  /* The budget of the current thread */
+
+  static Budget current()
+  {
+    return current.get();
+  }
+
+  // enter: Makes budget the current thread's budget (null for
+  // none), and returns the one it replaces, for exit.
+  static Budget enter(Budget budget)
+  {
+    Budget previous = current();
+    current.set(budget);
+    return previous;
+  }
+
+  static void exit(Budget previous)
+  {
+    if(previous == null) current.remove();
+    else current.set(previous);
+  }
+
+  // checkpoint, rows: check() and checkRows() on the
+  // current thread's budget, if it has one.
+  static void checkpoint()
+  {
+    Budget budget = current();
+    if(budget != null) budget.check(1);
+  }
+
+  static void rows(long n)
+  {
+    Budget budget = current();
+    if(budget != null) budget.checkRows(n);
+  }
+
+  /* Checks */
+
+  void cancel() { canceled = true;}
+
+  boolean canceled()
+  {
+    return canceled || (parent != null && parent.canceled());
+  }
+
+  // check: Records that steps more steps were taken, and throws
+  // if the calculation was canceled or has run out of time.
+  void check(long steps)
+  {
+    this.steps += steps;
+    if(canceled) throw exceeded("Canceled");
+    if(parent != null) parent.check(steps);
+    if(timeLimit > 0 && System.nanoTime() - deadline > 0)
+      throw exceeded("Time limit of "+timeLimit+" ms exceeded");
+  }
+
+  // checkRows: Throws if a result has grown to more than the
+  // row limit.  Also checks as check() does.
+  void checkRows(long n)
+  {
+    if(n > rows) rows = n;
+    if(rowLimit > 0 && n > rowLimit)
+      throw exceeded("Result of more than "+rowLimit+" rows");
+    if(parent != null) parent.checkRows(n);
+    check(0);
+  }
+
+  private Exceeded exceeded(String reason)
+  {
+    long elapsed = (System.nanoTime() - start)/1000000L;
+    return new Exceeded(reason+" after "+elapsed+" ms: "+
+                        steps+" search steps, "+
+                        rows+" rows in the largest result");
+  }
+
+  // Exceeded is unchecked, so that it can be thrown from deep in
+  // a search.  Its constructor is not public, so a fork/join pool
+  // rethrows it as it is rather than wrapping it in a copy.
+  static class Exceeded extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+
+    Exceeded(String message) { super(message);}
+  }
+}
@@ -0,0 +1,7 @@
+// A calculation was canceled, or ran out of its Budget
+class BudgetExceededException extends ExecutionException
+{
+  private static final long serialVersionUID = 1L;
+
+  BudgetExceededException(String message) { super(message); }
+}
@@ -0,0 +1,95 @@
+// A ByteMatrix stores a matrix with entries in [0,255] as
+// bytes, row after row, in a single array.  Entry (r,c) is
+// cells[r*ncols+c], read as an unsigned byte.
+class ByteMatrix extends Matrix
+{
+  private int nrows, ncols;
+  private byte cells[];
+
+  /* constructor */
+  ByteMatrix(byte cells[], int nrows, int ncols)
+  {
+    this.nrows = nrows;
+    this.ncols = ncols;
+    this.cells = cells;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return nrows;}
+  int ncols() { return ncols;}
+  int entry(int r, int c) { return cells[r*ncols+c] & 0xFF;}
+
+  void getRow(int r, int line[])
+  {
+    for(int c=0, i=r*ncols; c<ncols; c++, i++) line[c] = cells[i] & 0xFF;
+  }
+
+  void getCol(int c, int line[])
+  {
+    for(int r=0, i=c; r<nrows; r++, i+=ncols) line[r] = cells[i] & 0xFF;
+  }
+
+  int compareRows(int r1, int r2)
+  {
+    for(int i=r1*ncols, j=r2*ncols, c=0; c<ncols; c++) {
+      int d = (cells[i+c] & 0xFF) - (cells[j+c] & 0xFF);
+      if(d != 0) return d;
+    }
+    return 0;
+  }
+
+  /* Packing */
+
+  // pack: Converts nrows*ncols entries, row after row, to bytes
+  static ByteMatrix pack(int cells[], int nrows, int ncols)
+  {
+    byte new_cells[] = new byte[nrows*ncols];
+    for(int i=0;i<new_cells.length;i++) new_cells[i] = (byte)cells[i];
+    return new ByteMatrix(new_cells, nrows, ncols);
+  }
+
+  /* Builders */
+
+  // copyTranspose: Copies in square blocks, so that the rows
+  // being read and the rows being written both stay in cache.
+  Matrix copyTranspose()
+  {
+    byte new_cells[] = new byte[cells.length];
+
+    for(int r0=0;r0<nrows;r0+=BLOCK) for(int c0=0;c0<ncols;c0+=BLOCK) {
+      int r1 = Math.min(r0+BLOCK, nrows);
+      int c1 = Math.min(c0+BLOCK, ncols);
+      for(int r=r0;r<r1;r++) for(int c=c0;c<c1;c++)
+        new_cells[c*nrows+r] = cells[r*ncols+c];
+    }
+
+    return new ByteMatrix(new_cells, ncols, nrows);
+  }
+
+  private static final int BLOCK = 64;
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    byte new_cells[] = new byte[cells(nrows, ncols)];
+
+    // Whole rows are copied at once when all columns are kept in order
+    if(ncols == this.ncols) {
+      boolean identity = true;
+      for(int c=0; c<ncols; c++) identity &= (colIndex[c] == c);
+      if(identity) {
+        for(int r=0; r<nrows; r++)
+          System.arraycopy(cells, rowIndex[r]*ncols, new_cells, r*ncols, ncols);
+        return new ByteMatrix(new_cells, nrows, ncols);
+      }
+    }
+
+    for(int r=0, i=0; r<nrows; r++) {
+      int base = rowIndex[r]*this.ncols;
+      for(int c=0; c<ncols; c++)
+        new_cells[i++] = cells[base+colIndex[c]];
+    }
+
+    return new ByteMatrix(new_cells, nrows, ncols);
+  }
+}
@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 import java.util.Hashtable;
 import java.util.Vector;
@@ -11,12 +12,48 @@ class Calc extends Observable
   private Conformable undef;
   private Context context;
 
+  /* Results of operators, kept for reuse */
+  static final long DEFAULT_CACHE_BUDGET = 64L << 20;  // bytes
+  private ResultCache cache;
+
+  /* Where the results of -o, #, => and & are mapped, or null to
+   * keep them on the heap (see setMapDirectory)
+   */
+  private File mapDirectory;
+
+  /* Operator names.  These are known before any Calc exists, so
+   * that expressions can be parsed on their own; the constructor
+   * registers an operator under each of them.
+   */
+  static final String UNARY_OPERATORS[] = { "ID", "_|_", "?", "!" };
+  static final String BINARY_OPERATORS[] =
+    { "*", "#", "-o", "-o#", "+", "&", "=>", "U", ";" };
+
+  static boolean isUnaryOperator(String name)
+  {
+    for(int i=0;i<UNARY_OPERATORS.length;i++)
+      if(UNARY_OPERATORS[i].equals(name)) return true;
+    return false;
+  }
+
+  static boolean isBinaryOperator(String name)
+  {
+    for(int i=0;i<BINARY_OPERATORS.length;i++)
+      if(BINARY_OPERATORS[i].equals(name)) return true;
+    return false;
+  }
+
   /* Calculation management */
   static final int BEGIN = 0;
   static final int END   = 1;
   static final int FAIL  = 2;
   int eventCode;   // BEGIN, END, or FAIL
   Thread calcThread;
+  private Budget budget;  // of the calculation in calcThread
+
+  // Limits for each calculation: milliseconds of running time,
+  // and rows in any one result.  0 means no limit.
+  private long timeLimit, rowLimit;
 
   /* Construct a calculator */
 
@@ -24,6 +61,7 @@ class Calc extends Observable
   {
     calcThread = null;
     context = new Context(2,true);
+    cache = new ResultCache(DEFAULT_CACHE_BUDGET);
 
     undef = new Conformable() {
       public Chu conform(Context context)
@@ -38,17 +76,31 @@ class Calc extends Observable
 
     constants.put("Undef", undef);
 
+    // 1 and _|_ depend on K.  The same space is given each time
+    // for the same K, so that results made from it can be reused.
     constants.put("1",       new Conformable() {
-      public Chu conform(Context context)
+      private Hashtable<Integer,Chu> spaces = new Hashtable<Integer,Chu>();
+      public synchronized Chu conform(Context context)
       {
-        return new Chu(context.k);
+        Chu result = spaces.get(Integer.valueOf(context.k));
+        if(result == null) {
+          result = new Chu(context.k);
+          spaces.put(Integer.valueOf(context.k), result);
+        }
+        return result;
       }
     });
 
     constants.put("_|_",     new Conformable() {
-      public Chu conform(Context context)
+      private Hashtable<Integer,Chu> spaces = new Hashtable<Integer,Chu>();
+      public synchronized Chu conform(Context context)
       {
-        return (new Chu(context.k)).dual();
+        Chu result = spaces.get(Integer.valueOf(context.k));
+        if(result == null) {
+          result = (new Chu(context.k)).dual();
+          spaces.put(Integer.valueOf(context.k), result);
+        }
+        return result;
       }
     });
 
@@ -104,7 +156,7 @@ class Calc extends Observable
     unops.put("!", new UnaryOperator() {
       Chu apply(Chu arg) throws ExecutionException
       {
-        return arg.dual().query().dual();
+        return arg.coQuery();
       }
     });
 
@@ -115,42 +167,68 @@ class Calc extends Observable
     binops.put("*", new BinaryOperator() {
       Chu apply(Chu leftArg, Chu rightArg) throws ExecutionException
       {
-        return Chu.implication(leftArg, rightArg.dual()).dual();
+        return Chu.tensor(leftArg, rightArg, context);
       }
     });
 
     binops.put("#", new BinaryOperator() {
       Chu apply(Chu leftArg, Chu rightArg) throws ExecutionException
       {
-        return Chu.implication(leftArg.dual(), rightArg);
+        return implication(leftArg.dual(), rightArg);
       }
     });
 
     binops.put("-o", new BinaryOperator() {
       Chu apply(Chu leftArg, Chu rightArg) throws ExecutionException
       {
-        return Chu.implication(leftArg, rightArg);
+        return implication(leftArg, rightArg);
+      }
+    });
+
+    // -o# counts transforms: its result is the number of rows
+    // of leftArg -o rightArg, written as a row of decimal digits.
+    // It is not conformed, since standardizing would merge the
+    // columns of repeated digits.
+    binops.put("-o#", new BinaryOperator() {
+      Chu apply(Chu leftArg, Chu rightArg, Context context)
+        throws ExecutionException
+      {
+        return apply(leftArg, rightArg);
+      }
+
+      Chu apply(Chu leftArg, Chu rightArg) throws ExecutionException
+      {
+        return Chu.number(Chu.countTransforms(leftArg, rightArg,
+                                              context.parallelism,
+                                              context.propagation));
       }
     });
 
     binops.put("+", new BinaryOperator() {
       Chu apply(Chu leftArg, Chu rightArg) throws ExecutionException
       {
-        return Chu.product(leftArg.dual(), rightArg.dual()).dual();
+        return Chu.plus(leftArg, rightArg);
       }
     });
 
     binops.put("&", new BinaryOperator() {
       Chu apply(Chu leftArg, Chu rightArg) throws ExecutionException
       {
-        return Chu.product(leftArg, rightArg);
+        File file = mapFile();
+        if(file == null) return Chu.product(leftArg, rightArg);
+        try {
+          return Chu.product(leftArg, rightArg, file);
+        }
+        catch(IOException x) {
+          throw new ExecutionException(file+": "+x.getMessage());
+        }
       }
     });
 
     binops.put("=>", new BinaryOperator() {
       Chu apply(Chu leftArg, Chu rightArg) throws ExecutionException
       {
-        return Chu.implication(leftArg.dual().query().dual(), rightArg);
+        return implication(leftArg.coQuery(), rightArg);
       }
     });
 
@@ -189,6 +267,48 @@ class Calc extends Observable
     executables.put("Multi", e);
     executables.put("multi", e);
     executables.put("off", e);
+    e = new Executable () {
+      public void exec(Calc c)
+      {
+        c.setParallelism(Runtime.getRuntime().availableProcessors());
+      }
+    };
+    executables.put("Parallel", e);
+    e = new Executable () {
+      public void exec(Calc c)
+      {
+        c.setParallelism(1);
+      }
+    };
+    executables.put("Serial", e);
+    e = new Executable () {
+      public void exec(Calc c)
+      {
+        c.setPropagation(true);
+      }
+    };
+    executables.put("Propagate", e);
+    e = new Executable () {
+      public void exec(Calc c)
+      {
+        c.setPropagation(false);
+      }
+    };
+    executables.put("Herringbone", e);
+    e = new Executable () {
+      public void exec(Calc c)
+      {
+        c.setLazy(true);
+      }
+    };
+    executables.put("Lazy", e);
+    e = new Executable () {
+      public void exec(Calc c)
+      {
+        c.setLazy(false);
+      }
+    };
+    executables.put("Eager", e);
   }
 
   /* Manage Context */
@@ -208,11 +328,30 @@ class Calc extends Observable
     context.standardization = value;
   }
 
+  void setParallelism(int value)
+  {
+    context.parallelism = (value < 1 ? 1 : value);
+  }
+
+  void setPropagation(boolean value)
+  {
+    context.propagation = value;
+  }
+
+  void setLazy(boolean value)
+  {
+    context.lazy = value;
+  }
+
   Context getContext()
   {
     // Return a copy of the context.
     // Doen't expose original to unauthorized modification
-    return new Context(context.k, context.standardization);
+    Context copy = new Context(context.k, context.standardization,
+                               context.parallelism);
+    copy.propagation = context.propagation;
+    copy.lazy = context.lazy;
+    return copy;
   }
 
   /* Manage variables and constants */
@@ -282,7 +421,16 @@ class Calc extends Observable
     else {
       throw new ExecutionException("Unknown Chu Space "+identifier);
     }
-    return result.conform(context);
+
+    try {
+      return result.conform(context);
+    }
+    catch(Budget.Exceeded x) {
+      throw new BudgetExceededException(identifier+": "+x.getMessage());
+    }
+    catch(Matrix.TooLarge x) {
+      throw new ExecutionException(identifier+": "+x.getMessage());
+    }
   }
 
   // Returns the unconformed value of a variable
@@ -333,8 +481,166 @@ class Calc extends Observable
     }
   }
 
+  /* Apply operators, reusing earlier results */
+
+  // apply: The result of the named unary operator on arg, in the
+  // current context.  If the same operator has been applied to
+  // the same space in the same context, and the result is still
+  // cached, it is returned instead of being computed again.
+  Chu apply(String unaryOp, Chu arg) throws ExecutionException
+  {
+    UnaryOperator operator = lookupUnaryOperator(unaryOp);
+    Context context = getContext();
+
+    try {
+      Chu result = cache.get(unaryOp, arg, null, context);
+      if(result == null) {
+        result = operator.apply(arg, context);
+        cache.put(unaryOp, arg, null, context, result);
+      }
+      Budget.rows(result.nrows());  // even if it was cached
+      return result;
+    }
+    catch(Budget.Exceeded x) {
+      throw new BudgetExceededException(unaryOp+": "+x.getMessage());
+    }
+    catch(Matrix.TooLarge x) {
+      throw new ExecutionException(unaryOp+": "+x.getMessage());
+    }
+  }
+
+  // apply: The same for a binary operator.
+  Chu apply(Chu leftArg, String binaryOp, Chu rightArg)
+    throws ExecutionException
+  {
+    BinaryOperator operator = lookupBinaryOperator(binaryOp);
+    Context context = getContext();
+
+    try {
+      Chu result = cache.get(binaryOp, leftArg, rightArg, context);
+      if(result == null) {
+        result = operator.apply(leftArg, rightArg, context);
+        cache.put(binaryOp, leftArg, rightArg, context, result);
+      }
+      Budget.rows(result.nrows());  // even if it was cached
+      return result;
+    }
+    catch(Budget.Exceeded x) {
+      throw new BudgetExceededException(binaryOp+": "+x.getMessage());
+    }
+    catch(Matrix.TooLarge x) {
+      throw new ExecutionException(binaryOp+": "+x.getMessage());
+    }
+  }
+
+  // setCacheBudget: Sets roughly how many bytes of results may be
+  // kept for reuse.  Zero turns the cache off.
+  void setCacheBudget(long bytes)
+  {
+    cache.setBudget(bytes);
+  }
+
+  long getCacheBudget()
+  {
+    return cache.budget();
+  }
+
+  void clearCache()
+  {
+    cache.clear();
+  }
+
+  /* Mapped results */
+
+  // setMapDirectory: From now on, the results of -o, #, => and &
+  // are written into new files in dir, and mapped from there
+  // rather than held on the heap (see MappedMatrix), so they can
+  // be larger than the heap.  The files are deleted when the
+  // program exits.  null keeps results on the heap again.
+  void setMapDirectory(File dir)
+  {
+    mapDirectory = dir;
+  }
+
+  File getMapDirectory() { return mapDirectory;}
+
+  // mapFile: A new file for a result, or null if results
+  // are kept on the heap.
+  private File mapFile() throws ExecutionException
+  {
+    File dir = mapDirectory;
+    if(dir == null) return null;
+    try {
+      File file = File.createTempFile("result", ".chus", dir);
+      file.deleteOnExit();
+      return file;
+    }
+    catch(IOException x) {
+      throw new ExecutionException(dir+": "+x.getMessage());
+    }
+  }
+
+  // implication: A -o B in the current context, mapped if
+  // results are mapped.
+  private Chu implication(Chu A, Chu B) throws ExecutionException
+  {
+    File file = mapFile();
+    if(file == null) return Chu.implication(A, B, context);
+    try {
+      return Chu.implication(A, B, context, file);
+    }
+    catch(IOException x) {
+      throw new ExecutionException(file+": "+x.getMessage());
+    }
+  }
+
   /* Calculation management */
 
+  // setTimeLimit, setRowLimit: Limits for calculations started
+  // from now on.  A calculation that runs longer than ms
+  // milliseconds, or makes a result of more than rows rows, is
+  // stopped with a BudgetExceededException.  0 means no limit.
+  void setTimeLimit(long ms)
+  {
+    timeLimit = (ms < 0 ? 0 : ms);
+  }
+
+  void setRowLimit(long rows)
+  {
+    rowLimit = (rows < 0 ? 0 : rows);
+  }
+
+  long getTimeLimit() { return timeLimit;}
+  long getRowLimit() { return rowLimit;}
+
+  // execute: Runs program (a Program, or a single Statement)
+  // against this calculator, in this thread, within the time and
+  // row limits.
+  void execute(Executable program) throws ExecutionException
+  {
+    execute(program, new Budget(timeLimit, rowLimit));
+  }
+
+  // execute: The same within the given budget, which may be
+  // shared by several programs.
+  void execute(Executable program, Budget budget)
+    throws ExecutionException
+  {
+    Budget previous = Budget.enter(budget);
+    try {
+      program.exec(this);
+    }
+    catch(Budget.Exceeded x) {
+      throw new BudgetExceededException(x.getMessage());
+    }
+    catch(Matrix.TooLarge x) {
+      throw new ExecutionException(x.getMessage());
+    }
+    finally {
+      Budget.exit(previous);
+    }
+  }
+
   void broadcast(int newEventCode, String message)
   {
     eventCode = newEventCode;
@@ -342,7 +648,7 @@ class Calc extends Observable
     notifyObservers(message);
   }
 
-  void calculate(String programText, boolean showText)
+  synchronized void calculate(String programText, boolean showText)
     throws ExecutionException
   {
     if (calcThread != null)
@@ -350,7 +656,8 @@ class Calc extends Observable
                                    " before starting another");
 
     // Set up a separate thread to run the calculation.
-    calcThread = new Thread(new Calculation(programText, showText));
+    budget = new Budget(timeLimit, rowLimit);
+    calcThread = new Thread(new Calculation(programText, showText, budget));
 
     // Start the thread: it will take care of the rest.
     calcThread.start();
@@ -358,12 +665,16 @@ class Calc extends Observable
 
   void cancel() throws ExecutionException
   {
-    if(calcThread == null)
-      throw new ExecutionException("Nothing to CANCEL");
-
-    // Stop and forget the current calculation.
-    calcThread.stop();
-    calcThread = null;
+    synchronized(this) {
+      if(calcThread == null)
+        throw new ExecutionException("Nothing to CANCEL");
+
+      // Ask the current calculation to stop, and forget it.  It
+      // stops at its next checkpoint (a step of a search, or of
+      // closing or standardizing a space), and says no more.
+      budget.cancel();
+      calcThread = null;
+    }
 
     // Tell everyone about the cancelation
     broadcast(FAIL, "Canceled");
@@ -377,11 +688,13 @@ class Calc extends Observable
   {
     String programText;
     boolean showText;
+    Budget budget;
 
-    Calculation(String programText, boolean showText)
+    Calculation(String programText, boolean showText, Budget budget)
     {
       this.programText = programText;
       this.showText = showText;
+      this.budget = budget;
     }
 
     public void run()
@@ -395,20 +708,25 @@ class Calc extends Observable
         // This line literally does everything!
         // It creates a program from the given text,
         // and executes it against this calculator.
-        (new Program(programText)).exec(Calc.this);
+        execute(new Program(programText), budget);
 
-        broadcast(END, showText ? programText : null);
+        if(!budget.canceled())
+          broadcast(END, showText ? programText : null);
       }
       catch (SyntaxException x) {
         broadcast(FAIL, x.getMessage());
       }
       catch (ExecutionException x) {
-        broadcast(FAIL, x.getMessage());
+        // A canceled calculation was reported by cancel()
+        if(!budget.canceled()) broadcast(FAIL, x.getMessage());
       }
       finally {
         // The calculatation is done, one way or another.
-        // Forget about it!
-        calcThread = null;
+        // Forget about it, unless another has already
+        // taken its place!
+        synchronized(Calc.this) {
+          if(calcThread == Thread.currentThread()) calcThread = null;
+        }
       }
     }
   }
@@ -425,7 +743,7 @@ class Calc extends Observable
       int length = System.in.read(buffer);
       String programText = new String(buffer, 0, length);
       try {
-        (new Program(programText)).exec(c);
+        c.execute(new Program(programText));
       }
       catch (SyntaxException e) {
         System.out.println(e.getMessage());
@@ -0,0 +1,91 @@
+// A ChoiceMatrix is the matrix of Chu.choice(A,B) without the
+// copying: A in the upper left, B in the lower right, and zeros
+// elsewhere.  Entries, rows and columns are read from A and B.
+//   Packed rows, copies and selections need the rows laid out,
+// so the first of those builds the whole matrix, once.  As with
+// a ProductMatrix, standardizing is one of those whenever K <= 2
+// or a line repeats, so then a conformed choice is built at once.
+class ChoiceMatrix extends Matrix
+{
+  private Matrix A, B;
+  private int K;
+  private Matrix built;
+
+  /* constructor */
+  ChoiceMatrix(Matrix A, Matrix B, int K)
+  {
+    this.A = A;
+    this.B = B;
+    this.K = K;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return A.nrows()+B.nrows();}
+  int ncols() { return A.ncols()+B.ncols();}
+
+  int entry(int r, int c)
+  {
+    int nA = A.nrows(), mA = A.ncols();
+    if(r < nA) return (c < mA) ? A.entry(r, c) : 0;
+    else return (c < mA) ? 0 : B.entry(r-nA, c-mA);
+  }
+
+  boolean bits() { return A.bits() && B.bits();}
+
+  void getRow(int r, int line[])
+  {
+    int nA = A.nrows(), mA = A.ncols(), ncols = ncols();
+    if(r < nA) {
+      A.getRow(r, line);
+      for(int c=mA;c<ncols;c++) line[c] = 0;
+    }
+    else {
+      for(int c=0;c<mA;c++) line[c] = 0;
+      for(int c=mA;c<ncols;c++) line[c] = B.entry(r-nA, c-mA);
+    }
+  }
+
+  void getCol(int c, int line[])
+  {
+    int nA = A.nrows(), mA = A.ncols(), nrows = nrows();
+    if(c < mA) {
+      A.getCol(c, line);
+      for(int r=nA;r<nrows;r++) line[r] = 0;
+    }
+    else {
+      for(int r=0;r<nA;r++) line[r] = 0;
+      for(int r=nA;r<nrows;r++) line[r] = B.entry(r-nA, c-mA);
+    }
+  }
+
+  /* Builders */
+
+  Matrix rowMajor() { return built();}
+  Matrix copyTranspose() { return built().copyTranspose();}
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    return built().select(rowIndex, nrows, colIndex, ncols);
+  }
+
+  // built: The rows laid out, built the first time they are needed
+  private synchronized Matrix built()
+  {
+    if(built != null) return built;
+
+    if(bits())
+      built = BitMatrix.blocks((BitMatrix)A.rowMajor(), (BitMatrix)B.rowMajor());
+    else {
+      int nrows = nrows(), ncols = ncols();
+      int cells[] = new int[cells(nrows, ncols)];
+      int line[] = new int[ncols];
+      for(int r=0;r<nrows;r++) {
+        getRow(r, line);
+        System.arraycopy(line, 0, cells, r*ncols, ncols);
+      }
+      built = Matrix.build(K, cells, nrows, ncols);
+    }
+    return built;
+  }
+}
@@ -1,7 +1,22 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.Vector;
-import java.util.Stack;
-import java.util.Enumeration;
 import java.util.StringTokenizer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 class Chu implements Conformable
 {
@@ -12,12 +27,14 @@ class Chu implements Conformable
   private int K;
   private int nrows;
   private int ncols;
-  private int matrix[][];
+  private Matrix matrix;
   private Chu standard;  // Pointer to standardized version of this space
+  private long fingerprint[];  // Content hash, once computed
+  private long canonical[];    // Permutation-invariant hash, once computed
 
   /* Trusting constructor: performs no consistency checks
    */
-  private Chu(int K, int nrows, int ncols, int matrix[][],
+  private Chu(int K, int nrows, int ncols, Matrix matrix,
               boolean standardized)
   {
     this.K = K;
@@ -31,8 +48,20 @@ class Chu implements Conformable
    */
   Chu(int size)
   {
-    this(size, 1, size, new int[1][size], true);
-    for(int i=0;i<size;i++) matrix[0][i] = i;
+    this(size, 1, size, null, true);
+    int row[][] = new int[1][size];
+    for(int i=0;i<size;i++) row[0][i] = i;
+    matrix = Matrix.build(size, row, size);
+  }
+
+  /* Matrix constructor: builds a space over the given matrix,
+   * whose entries must be in [0,K-1].  No checks are made.  If
+   * standardized is true the matrix must already be standard
+   * (as when it was saved from a standard space).
+   */
+  Chu(int K, Matrix matrix, boolean standardized)
+  {
+    this(K, matrix.nrows(), matrix.ncols(), matrix, standardized);
   }
 
   /* Parse constructor: builds a Chu space from the given Strings.
@@ -118,7 +147,7 @@ class Chu implements Conformable
       nrows = rowTokenizer.countTokens();
       nrowsInit = true;
     }
-    matrix = new int[nrows][];
+    int rows[][] = new int[nrows][];
 
     // Build rows from rowTokenizer: store results in matrix
 
@@ -127,7 +156,7 @@ class Chu implements Conformable
     {
 
       String rowString = rowTokenizer.nextToken();
-      Vector entries = new Vector();
+      Vector<Integer> entries = new Vector<Integer>();
 
       // put all the entries in this row into the Vector entries
 
@@ -140,7 +169,7 @@ class Chu implements Conformable
           int d = Character.digit(ch,10);
           if(kInit) {
             if (d < K)
-              entries.addElement(new Integer(d));
+              entries.addElement(Integer.valueOf(d));
             else { // Out of bounds
               throw new ParseException("Entry ("+(r+1)+","+
                                        (entries.size()+1)+")"+
@@ -149,7 +178,7 @@ class Chu implements Conformable
             }
           }
           else { // !kInit
-            entries.addElement(new Integer(d));
+            entries.addElement(Integer.valueOf(d));
             if(d>=K) K=d+1;
           }
         }
@@ -162,31 +191,34 @@ class Chu implements Conformable
       }
 
       // Infer ncols if not already initialized
-      // Set up matrix[r]
+      // Set up rows[r]
 
       if(!ncolsInit) {
         ncols = entries.size();
         ncolsInit = true;
       }
-      matrix[r] = new int[ncols];
+      rows[r] = new int[ncols];
 
-      // copy ncols elements into matrix[r]: pad as needed
+      // copy ncols elements into rows[r]: pad as needed
 
       int c;
       for(c=0 ; c<ncols && c<entries.size() ; c++)
-        matrix[r][c] = ((Integer)entries.elementAt(c)).intValue();
+        rows[r][c] = entries.elementAt(c).intValue();
       for(; c<ncols ; c++)
-        matrix[r][c] = 0;
+        rows[r][c] = 0;
     }
 
     // Pad matrix with rows of zeros as needed
 
     for( ; r<nrows ; r++) {
-      matrix[r] = new int[ncols];
+      rows[r] = new int[ncols];
       for(int c=0; c<ncols; c++) {
-        matrix[r][c] = 0;
+        rows[r][c] = 0;
       }
     }
+
+    // Store the rows compactly
+    matrix = Matrix.build(K, rows, ncols);
   }
 
   /* unparse: Returns a string representing this space.
@@ -195,30 +227,56 @@ class Chu implements Conformable
   String unparse() throws ParseException
   {
     if(K>10) throw new ParseException("K="+K+" is out of bounds");
-    StringBuffer out = new StringBuffer(100 + nrows*(ncols+1));
+    // A character per entry and a newline per row, which must fit
+    // in one buffer (see Matrix.cells)
+    StringBuffer out = new StringBuffer(Matrix.cells(nrows, ncols+1));
 
+    int row[] = new int[ncols];
     for(int r=0;r<nrows;r++) {
+      matrix.getRow(r,row);
       for(int c=0;c<ncols;c++) {
-        out.append(Character.forDigit(matrix[r][c],10));
+        out.append(Character.forDigit(row[c],10));
       }
       out.append('\n');
     }
     return out.toString();
   }
 
+  // unparse: The same text, written to out a row at a time, so it
+  // need not fit in memory (for a mapped space, say).
+  void unparse(Writer out) throws ParseException, IOException
+  {
+    if(K>10) throw new ParseException("K="+K+" is out of bounds");
+
+    int row[] = new int[ncols];
+    char line[] = new char[ncols+1];
+    line[ncols] = '\n';
+    for(int r=0;r<nrows;r++) {
+      matrix.getRow(r,row);
+      for(int c=0;c<ncols;c++) line[c] = Character.forDigit(row[c],10);
+      out.write(line);
+    }
+  }
+
   /* Inspectors */
 
   int K() { return K;}
   int nrows() { return nrows;}
   int ncols() { return ncols;}
+  int entry(int r, int c) { return matrix.entry(r,c);}
+  Matrix matrix() { return matrix;}
+  boolean standardized() { return standard == this;}
 
   Tree rowTree()
   {
     Tree result = new Tree(K,ncols);
-    int row[];
-    for(int r=0;r<nrows;r++) {    // Loop over rows
-      row = matrix[r];            // Get next row
-      result.addLine(row,r);      // add row to tree
+    Matrix distinct = matrix.distinct();
+    int row[] = new int[ncols];
+    int r=0;
+    for(int k=0;k<matrix.runs();k++) {    // Loop over runs of rows
+      distinct.getRow(matrix.runIndex(k),row);  // Get next row
+      for(int i=0;i<matrix.runLength(k);i++)
+        result.addLine(row,r++);          // add copies to tree
     }
     return result;
   }
@@ -228,23 +286,181 @@ class Chu implements Conformable
     Tree result = new Tree(K,nrows);
     int col[] = new int[nrows];
     for(int c=0;c<ncols;c++) {    // Loop over columns
-      for(int r=0;r<nrows;r++)    // Get next column
-        col[r]=matrix[r][c];
+      matrix.getCol(c,col);       // Get next column
       result.addLine(col,c);      // add column to tree
     }
     return result;
   }
 
-  /* Unary Operations */
+  /* Fingerprints and equality */
 
-  Chu dual()
+  // fingerprint: A 128-bit hash (two longs) of K, the shape and
+  // the entries in order.  Spaces with equal entries have equal
+  // fingerprints, however their matrices are stored.  Each distinct
+  // row is hashed once, and the row hashes are then combined once
+  // per copy.  The result is kept, like standard, and must not be
+  // changed by the caller.
+  synchronized long[] fingerprint()
+  {
+    if(fingerprint == null)
+    {
+      Matrix distinct = matrix.distinct();
+      long row_hash[] = new long[2*distinct.nrows()];
+      int row[] = new int[ncols];
+      long h[] = new long[2];
+      for(int r=0;r<distinct.nrows();r++) {
+        distinct.getRow(r,row);
+        hashLine(row, ncols, h);
+        row_hash[2*r] = h[0];
+        row_hash[2*r+1] = h[1];
+      }
+
+      long a = mix(K), b = mix(((long)nrows << 32) ^ ncols);
+      for(int k=0;k<matrix.runs();k++) {
+        int i = matrix.runIndex(k);
+        for(int n=0;n<matrix.runLength(k);n++) {
+          a = Long.rotateLeft(a, 31) * 0x87c37b91114253d5L ^ row_hash[2*i];
+          b = Long.rotateLeft(b, 27) * 0x4cf5ad432745937fL ^ row_hash[2*i+1];
+        }
+      }
+      fingerprint = new long[] { mix(a ^ nrows), mix(b + a) };
+    }
+    return fingerprint;
+  }
+
+  // canonicalFingerprint: A 128-bit hash of the standardized form
+  // of this space that does not change when its rows or columns
+  // are permuted, so spaces that are the same up to repetition
+  // and order of rows and columns get the same hash.  (Different
+  // spaces can rarely share one, so equal hashes are not a proof.)
+  //   Rows and columns are given colors, starting all alike, and
+  // each round recolors every line by its old color and the
+  // multiset of (entry, color) pairs across it.  The rounds stop
+  // when they no longer split any class of lines, and the hash is
+  // taken over the multisets of final colors.
+  long[] canonicalFingerprint()
+  {
+    Chu s = standardize();
+    synchronized(s) {
+      if(s.canonical == null) s.canonical = s.refine();
+    }
+    return s.canonical;
+  }
+
+  private long[] refine()
+  {
+    int rows[][] = new int[nrows][ncols];
+    for(int r=0;r<nrows;r++) matrix.getRow(r, rows[r]);
+
+    long row_color[] = new long[nrows];
+    long col_color[] = new long[ncols];
+    int row_classes = classes(row_color), col_classes = classes(col_color);
+
+    // Each round that goes on splits at least one class, so there
+    // are at most nrows+ncols of them.
+    for(int round=0; round<=nrows+ncols; round++) {
+      long new_rows[] = new long[nrows];
+      long new_cols[] = new long[ncols];
+      for(int r=0;r<nrows;r++) {
+        long sum = 0;
+        for(int c=0;c<ncols;c++) {
+          long pair = mix(col_color[c] + rows[r][c]);
+          new_cols[c] += mix(row_color[r] ^ ((long)rows[r][c] << 56) ^ pair);
+          sum += pair;
+        }
+        new_rows[r] = mix(row_color[r] * 0x9e3779b97f4a7c15L + sum);
+      }
+      for(int c=0;c<ncols;c++) new_cols[c] = mix(col_color[c] ^ new_cols[c]);
+
+      int new_row_classes = classes(new_rows);
+      int new_col_classes = classes(new_cols);
+      row_color = new_rows;
+      col_color = new_cols;
+      if(new_row_classes == row_classes && new_col_classes == col_classes)
+        break;
+      row_classes = new_row_classes;
+      col_classes = new_col_classes;
+    }
+
+    Arrays.sort(row_color);
+    Arrays.sort(col_color);
+    long h[] = new long[2];
+    long a = mix(K), b = mix(((long)nrows << 32) ^ ncols);
+    for(int r=0;r<nrows;r++) {
+      a = Long.rotateLeft(a, 31) * 0x87c37b91114253d5L ^ row_color[r];
+      b = Long.rotateLeft(b, 27) * 0x4cf5ad432745937fL ^ mix(row_color[r]);
+    }
+    for(int c=0;c<ncols;c++) {
+      a = Long.rotateLeft(a, 31) * 0x87c37b91114253d5L ^ col_color[c];
+      b = Long.rotateLeft(b, 27) * 0x4cf5ad432745937fL ^ mix(col_color[c]);
+    }
+    return new long[] { mix(a ^ nrows), mix(b + a) };
+  }
+
+  // classes: The number of different colors
+  private static int classes(long colors[])
+  {
+    if(colors.length == 0) return 0;
+    long sorted[] = colors.clone();
+    Arrays.sort(sorted);
+    int n = 1;
+    for(int i=1;i<sorted.length;i++) if(sorted[i] != sorted[i-1]) n++;
+    return n;
+  }
+
+  // hashLine: Hashes the first n entries of line into h[0], h[1]
+  private static void hashLine(int line[], int n, long h[])
+  {
+    long a = 0x9e3779b97f4a7c15L, b = 0xc2b2ae3d27d4eb4fL;
+    for(int i=0;i<n;i++) {
+      a = Long.rotateLeft(a ^ line[i], 31) * 0x87c37b91114253d5L;
+      b = Long.rotateLeft(b + line[i], 27) * 0x4cf5ad432745937fL;
+    }
+    h[0] = mix(a ^ n);
+    h[1] = mix(b + a);
+  }
+
+  // mix: Scrambles the bits of x (the finalizer of MurmurHash3)
+  private static long mix(long x)
+  {
+    x ^= x >>> 33;
+    x *= 0xff51afd7ed558ccdL;
+    x ^= x >>> 33;
+    x *= 0xc4ceb9fe1a85ec53L;
+    x ^= x >>> 33;
+    return x;
+  }
+
+  // equals: Spaces are equal if they have the same K, the same
+  // shape and the same entries in the same places.  Different
+  // fingerprints settle most unequal pairs without reading entries.
+  public boolean equals(Object o)
   {
-    int new_matrix[][] = new int[ncols][nrows];
+    if(o == this) return true;
+    if(!(o instanceof Chu)) return false;
+    Chu B = (Chu)o;
+    if(K != B.K || nrows != B.nrows || ncols != B.ncols) return false;
+    if(!Arrays.equals(fingerprint(), B.fingerprint())) return false;
+
+    int row[] = new int[ncols], other[] = new int[ncols];
+    for(int r=0;r<nrows;r++) {
+      matrix.getRow(r, row);
+      B.matrix.getRow(r, other);
+      if(!Arrays.equals(row, other)) return false;
+    }
+    return true;
+  }
+
+  public int hashCode()
+  {
+    return (int)fingerprint()[0];
+  }
 
-    for(int c=0;c<nrows;c++) for(int r=0;r<ncols;r++)
-      new_matrix[r][c] = matrix[c][r];
+  /* Unary Operations */
 
-    return new Chu(K, ncols, nrows, new_matrix,
+  Chu dual()
+  {
+    return new Chu(K, ncols, nrows, matrix.transpose(),
                    (standard==this)); // dual is standard iff original is
   }
 
@@ -255,23 +471,52 @@ class Chu implements Conformable
   // new generated.
   Chu query()
   {
-    if(K==2) return query2();
+    Matrix closed = close(K, matrix);
+    return new Chu(K, closed.nrows(), ncols, closed, false);
+  }
+
+  // coQuery: The columns of !A (the dual of ?(dual A)) are closed
+  // in the same way.  The columns are closed where they are, as the
+  // rows of the transposed view, so no dual spaces are built on the
+  // way in or out.
+  Chu coQuery()
+  {
+    Matrix closed = close(K, matrix.transpose());
+    return new Chu(K, nrows, closed.nrows(), closed.transpose(), false);
+  }
+
+  // close: Closes the rows of lines as described for query, and
+  // returns the closed rows: the original runs of rows, followed by
+  // the new rows.
+  private static Matrix close(int K, Matrix lines)
+  {
+    if(K==2) return close2(lines);
+    Matrix distinct = lines.distinct();
+
+    int ncols = lines.ncols();
 
     // The final number of rows is unknown,
     // so for now hold them in a Vector.
-    Vector result_rows = new Vector();
-    for(int r=0; r<nrows; r++)
-      result_rows.addElement(matrix[r]);
+    // Repeated rows add nothing to the closure, so only one
+    // copy of each is used; copies are restored at the end.
+    Vector<int[]> result_rows = new Vector<int[]>();
+    for(int r=0; r<distinct.nrows(); r++) {
+      int[] row = new int[ncols];
+      distinct.getRow(r, row);
+      result_rows.addElement(row);
+    }
 
     // row_tree holds the same rows as result_rows.
     //  (the Tree form is useful for feeding the MatrixGenerator)
-    Tree row_tree = rowTree();
+    Tree row_tree = new Tree(K,ncols);
+    for(int r=0; r<result_rows.size(); r++)
+      row_tree.addLine(result_rows.elementAt(r), r);
 
     // ?A must contain all constant rows
     for(int k=0; k<K; k++) {
       int[] const_row = new int[ncols];
       for(int i=0; i<ncols; i++) const_row[i] = k;
-      if(row_tree.findLine(const_row) == null)
+      if(row_tree.findLine(const_row) == Tree.NONE)
       {
         // This constant row is new!
         row_tree.addLine(const_row, result_rows.size());
@@ -279,174 +524,294 @@ class Chu implements Conformable
       }
     }
 
+    // The first round forms the diagonals of every square matrix
+    // of rows.  After that, a square matrix can only give a new
+    // diagonal if one of its lines (rows or columns) was added in
+    // the previous round: the others were all tried before.  Those
+    // matrices are enumerated in 2*ncols searches, split by which
+    // line is the first (rows, then columns) to come from the new
+    // rows (delta_tree).  Earlier lines come from the older rows
+    // (old_tree), later lines from any row (row_tree).
+    Tree old_tree = new Tree(K,ncols);
+    int delta_start = 0;  // result_rows from here on are new
+
     while(true)
     {
-      // Build all diagonals and put them in future_rows
-      Vector future_rows = new Vector();
-      MatrixGenerator MG = new MatrixGenerator(row_tree, row_tree);
-      while(MG.next())
-      {
-        int[] diagonal = new int[ncols];
-        for(int i=0; i<ncols; i++) {
-          int row_index = MG.rowLinks[i].datum();
-          int[] row = (int[])result_rows.elementAt(row_index);
-          diagonal[i] = row[i];
+      int round_start = result_rows.size();
+
+      // Collect the new diagonals of this round in future_rows.
+      // future_keys holds, for each, the cells of the earliest
+      // matrix giving it, so that they can be added in the order
+      // a single search over all the rows would have found them.
+      Vector<int[]> future_rows = new Vector<int[]>();
+      Vector<int[]> future_keys = new Vector<int[]>();
+      Tree future_tree = new Tree(K,ncols);
+
+      if(delta_start == 0) {
+        MatrixGenerator MG = new MatrixGenerator(row_tree, row_tree);
+        diagonals(MG, result_rows, row_tree,
+                  future_tree, future_rows, future_keys);
+      }
+      else {
+        Tree delta_tree = new Tree(K,ncols);
+        for(int r=delta_start; r<round_start; r++)
+          delta_tree.addLine(result_rows.elementAt(r), r);
+
+        for(int p=0; p<2*ncols; p++) {
+          Tree[] rows = new Tree[ncols];
+          Tree[] cols = new Tree[ncols];
+          for(int i=0; i<2*ncols; i++) {
+            Tree t = (i<p ? old_tree : (i==p ? delta_tree : row_tree));
+            if(i<ncols) rows[i] = t;
+            else cols[i-ncols] = t;
+          }
+          MatrixGenerator MG = new MatrixGenerator(rows, cols, K);
+          diagonals(MG, result_rows, row_tree,
+                    future_tree, future_rows, future_keys);
         }
-        future_rows.addElement(diagonal);
       }
 
-      // Search future_rows for new rows.
-      // Add new rows to row_tree, result_rows.
+      // This round's delta is old from now on
+      for(int r=delta_start; r<round_start; r++)
+        old_tree.addLine(result_rows.elementAt(r), r);
+      delta_start = round_start;
+
       // If none of the rows are new, break the loop.
-      Enumeration e = future_rows.elements();
-      boolean done = true;
-      while(e.hasMoreElements())
-      {
-        int[] row = (int[])e.nextElement();
-        if(row_tree.findLine(row) == null)
-        {
-          // This row is new!
-          done = false;
-          row_tree.addLine(row, result_rows.size());
-          result_rows.addElement(row);
-        }
+      if(future_rows.size() == 0) break;
+
+      // Add new rows to row_tree, result_rows, in order of discovery.
+      int order[] = order(future_keys);
+      for(int i=0; i<order.length; i++) {
+        int[] row = future_rows.elementAt(order[i]);
+        row_tree.addLine(row, result_rows.size());
+        result_rows.addElement(row);
       }
-      if(done) break;
+      Budget.rows(result_rows.size());
     }
 
     // All the rows have been generated: now build the result
-    int[][] new_matrix = new int[result_rows.size()][];
-    result_rows.copyInto(new_matrix);
-    return new Chu(K, result_rows.size(), ncols, new_matrix, false);
+    // from the original runs of rows, followed by the new rows.
+    int[][] new_rows = new int[result_rows.size()][];
+    result_rows.copyInto(new_rows);
+
+    int num_new = new_rows.length - distinct.nrows();
+    int n = lines.runs() + num_new;
+    int[] index = new int[n];
+    int[] count = new int[n];
+    for(int k=0; k<lines.runs(); k++) {
+      index[k] = lines.runIndex(k);
+      count[k] = lines.runLength(k);
+    }
+    for(int i=0; i<num_new; i++) {
+      index[lines.runs()+i] = distinct.nrows()+i;
+      count[lines.runs()+i] = 1;
+    }
+
+    return RepeatedMatrix.repeat(Matrix.build(K, new_rows, ncols),
+                                 index, count, n);
+  }
+
+  // diagonals: Runs MG over square matrices of rows, and collects
+  // the diagonals that are not already in row_tree.  Each is put
+  // in future_rows (and future_tree) once; future_keys keeps the
+  // cells of the first matrix, in MG's order, that gave it.
+  private static void diagonals(MatrixGenerator MG, Vector<int[]> result_rows,
+                                Tree row_tree, Tree future_tree,
+                                Vector<int[]> future_rows,
+                                Vector<int[]> future_keys)
+  {
+    int ncols = MG.ncols();
+    int[] diagonal = new int[ncols];
+    int[] cells = new int[ncols*ncols];
+
+    while(MG.next())
+    {
+      for(int i=0; i<ncols; i++) {
+        int row_index = MG.rowIndex(i);
+        int[] row = result_rows.elementAt(row_index);
+        diagonal[i] = row[i];
+      }
+      if(row_tree.findLine(diagonal) != Tree.NONE) continue;
+
+      MG.getCells(cells);
+      int seen = future_tree.findLine(diagonal);
+      if(seen == Tree.NONE) {
+        // This row is new!
+        future_tree.addLine(diagonal, future_rows.size());
+        future_rows.addElement(diagonal.clone());
+        future_keys.addElement(cells.clone());
+      }
+      else if(compare(future_keys.elementAt(seen), cells) > 0) {
+        // Seen already, but this matrix comes earlier
+        future_keys.setElementAt(cells.clone(), seen);
+      }
+    }
+  }
+
+  // order: Returns the indexes of keys, sorted by key
+  private static int[] order(final Vector<int[]> keys)
+  {
+    Integer[] order = new Integer[keys.size()];
+    for(int i=0; i<order.length; i++) order[i] = Integer.valueOf(i);
+
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b)
+      {
+        return Chu.compare(keys.elementAt(a.intValue()),
+                           keys.elementAt(b.intValue()));
+      }
+    });
+
+    int[] result = new int[order.length];
+    for(int i=0; i<order.length; i++) result[i] = order[i].intValue();
+    return result;
+  }
+
+  // compare: Lexicographic comparison of equal-length lines
+  private static int compare(int[] line1, int[] line2)
+  {
+    for(int i=0; i<line1.length; i++)
+      if(line1[i] != line2[i]) return line1[i] - line2[i];
+    return 0;
   }
 
   // query2: Closes the rows of A under union and instersection.
+  // Rows are handled in packed form, so unions and intersections
+  // are computed a word at a time.  Rows found so far are kept in
+  // a BitRowSet, and rows waiting to be looked at in a BitRowStack.
+  // A union or intersection is only put on the stack if it is not
+  // already known, since otherwise it would be thrown out when
+  // popped.
   Chu query2()
   {
-    // The final number of rows is unknown,
-    // so for now hold them in a Vector.
-    Vector result_rows = new Vector();
+    Matrix closed = close2(matrix);
+    return new Chu(2, closed.nrows(), ncols, closed, false);
+  }
 
-    // row_tree holds the same rows as result_rows.
-    // (The purpose of the Tree is simply to make
-    // checking for duplicates faster)
-    Tree row_tree = new Tree(2,ncols);
+  // coQuery2: Closes the columns of A under union and intersection.
+  // The columns are packed once, as the rows of the transposed view
+  // (for a dual space this is the storage itself), and closed as
+  // query2 closes rows.
+  Chu coQuery2()
+  {
+    Matrix closed = close2(matrix.transpose());
+    return new Chu(2, nrows, closed.nrows(), closed.transpose(), false);
+  }
 
-    // Put all the rows of original space on the stack
-    Stack future_rows = new Stack();
-    for(int r=0;r<nrows;r++)
-      future_rows.push(matrix[r]);
+  // close2: Closes the rows of lines as described for query2, and
+  // returns them as a packed matrix.  Lines that are not stored as
+  // bits (as when a K=2 space was built from wider spaces) are
+  // packed first, so every K=2 space is closed in the same order.
+  private static Matrix close2(Matrix lines)
+  {
+    BitMatrix packed = BitMatrix.pack(lines.distinct());
+    int ncols = lines.ncols();
+    int words = BitMatrix.words(ncols);
+
+    // The final number of rows is unknown, so for now
+    // hold them in a set that remembers their order.
+    BitRowSet result_rows = new BitRowSet(words);
+
+    // Put all the rows of original space on the stack.
+    // Of repeated rows only the last copy is pushed, since
+    // that is the copy that would be popped first.
+    BitRowStack future_rows = new BitRowStack(words);
+
+    int[] last_run = new int[packed.nrows()];
+    for(int k=0;k<lines.runs();k++)
+      last_run[lines.runIndex(k)] = k;
+
+    for(int k=0;k<lines.runs();k++)
+      if(last_run[lines.runIndex(k)] == k)
+        future_rows.push(packed.bits(lines.runIndex(k)));
 
     // Don't forget the union and intersection of the empty set of rows:
 
-    int[] zero_row = new int[ncols];
-    for(int c=0;c<ncols;c++) zero_row[c]=0;
-    future_rows.push(zero_row);
+    long[] row = new long[words];
+    future_rows.push(row);
 
-    int[] one_row = new int[ncols];
-    for(int c=0;c<ncols;c++) one_row[c]=1;
-    future_rows.push(one_row);
+    for(int c=0;c<ncols;c++) row[c>>>6] |= 1L << c;
+    future_rows.push(row);
 
     // Loop until no rows remain to insert
+    long[] union = new long[words];
+    long[] intersection = new long[words];
+    Budget budget = Budget.current();
     while(!future_rows.empty())
     {
-      // Is the row on the top of the Stack new?
-      int[] row = (int[])future_rows.pop();
-      if(row_tree.findLine(row) == null)
+      // Is the row on the top of the stack new?
+      future_rows.pop(row);
+      if(result_rows.find(row, 0) < 0)
       {
-        // The row is new: put all unions and intersections on the Stack
-        Enumeration e = result_rows.elements();
-        while(e.hasMoreElements())
+        // The row is new: put all new unions and intersections
+        // on the stack
+        int num_old = result_rows.size();
+        for(int old_row=0; old_row<num_old; old_row++)
         {
-          int[] old_row = (int[])e.nextElement();
-
-          // Calculate union and put it on the Stack
-          int[] union = new int[ncols];
-          for(int c=0;c<ncols;c++)
-            union[c] = (((row[c]==1)||(old_row[c]==1))?1:0);
-          future_rows.push(union);
-
-          // Calculate intersection and put it on the Stack
-          int[] intersection = new int[ncols];
-          for(int c=0;c<ncols;c++)
-            intersection[c] = (((row[c]==1)&&(old_row[c]==1))?1:0);
-          future_rows.push(intersection);
+          // Calculate union and intersection
+          for(int w=0;w<words;w++) {
+            long old_word = result_rows.word(old_row, w);
+            union[w] = row[w] | old_word;
+            intersection[w] = row[w] & old_word;
+          }
+
+          if(result_rows.find(union, 0) < 0)
+            future_rows.push(union);
+          if(result_rows.find(intersection, 0) < 0)
+            future_rows.push(intersection);
         }
 
         // Add row to the result
-        row_tree.addLine(row, result_rows.size());
-        result_rows.addElement(row);
+        result_rows.add(row, 0);
+        if(budget != null) budget.checkRows(result_rows.size());
       }
     }
 
     // All the rows have been generated: now build the result
-    int[][] new_matrix = new int[result_rows.size()][ncols];
-    result_rows.copyInto(new_matrix);
-    return new Chu(2, result_rows.size(), ncols, new_matrix, false);
+    return result_rows.toMatrix(ncols);
   }
 
   /* Binary operations */
 
   static Chu choice(Chu A, Chu B)
   {
+    if(A.repeated() || B.repeated())
+      return stack(choice(A.distinctRows(), B.distinctRows()), A, B);
+
     int K = A.K;
     if (B.K > K) K = B.K;
     int nrows = A.nrows + B.nrows;
     int ncols = A.ncols + B.ncols;
 
-    int matrix[][] = new int[nrows][ncols];
-    for(int r=0;r<nrows;r++)
-    {
-      for(int c=0;c<ncols;c++)
-      {
-        if (r<A.nrows) {
-          if (c<A.ncols)
-            matrix[r][c] = A.matrix[r][c];
-          else
-            matrix[r][c] = 0;
-        }
-        else {
-          if (c<A.ncols)
-            matrix[r][c] = 0;
-          else
-            matrix[r][c] = B.matrix[r-A.nrows][c-A.ncols];
-        }
-      }
-    }
-    return new Chu(K, nrows, ncols, matrix, false);
+    // The blocks are only laid out if something needs them to be
+    return new Chu(K, nrows, ncols,
+                   new ChoiceMatrix(A.matrix, B.matrix, K), false);
   }
 
   static Chu product(Chu A,Chu B)
   {
     if (A == null || B == null) return null;
+    if (A.repeated() || B.repeated()) return repeatedProduct(A, B);
     int K = A.K;  if (B.K > K) K=B.K;
 
     int nrows = A.nrows * B.nrows;
     int ncols = A.ncols + B.ncols;
 
-    int matrix[][] = new int[nrows][ncols];
-    int r=0; int c=0;
-    for(int ar=0;ar<A.nrows;ar++) // Loop over rows of A
-    {
-      for(int br=0;br<B.nrows;br++) // Loop over rows of B
-      {
-        // Create concatination of A.matrix[ar] and B.matrix[br]
-
-        for(int ac=0;ac<A.ncols;ac++)
-          matrix[r][c++] = A.matrix[ar][ac];
-
-        for(int bc=0;bc<B.ncols;bc++)
-          matrix[r][c++] = B.matrix[br][bc];
-
-        r++; c=0;
-      }
-    }
-    return new Chu(K, nrows, ncols, matrix, false);
+    // Row ar*B.nrows+br is the concatination of row ar of A and
+    // row br of B.  The rows are only laid out if something needs
+    // them to be.
+    return new Chu(K, nrows, ncols,
+                   new ProductMatrix(A.matrix, B.matrix, K), false);
   }
 
   static Chu sequence(Chu A, Chu B)
   {
     if (A == null || B == null) return null;
+
+    // Repeated rows don't change how columns compare
+    if(A.repeated() || B.repeated())
+      return stack(sequence(A.distinctRows(), B.distinctRows()), A, B);
+
     int K = A.K;  if (B.K > K) K=B.K;
 
     // Classify columns of A and B
@@ -459,36 +824,73 @@ class Chu implements Conformable
     // a column of A and a column of B.  Duplicates are not allowed.
     // The column (state) of A must be final   (= FINAL   || UNKNOWN).
     // The column (state) of B must be initial (= INITIAL || UNKNOWN).
+    //   So every pair of columns is used, except those where
+    // neither condition holds.
 
     int nrows = A.nrows + B.nrows;
-    int ncols = 0;
 
-    for(int ac=0; ac<A.ncols; ac++) // Loop over cols of A
-    {
+    int keptA = 0, finalA = 0;
+    for(int ac=0; ac<A.ncols; ac++) {
       if(classificationA[ac] == DUPLICATE) continue;
+      keptA++;
+      if(classificationA[ac] == UNKNOWN || classificationA[ac] == FINAL)
+        finalA++;
+    }
+    int keptB = 0, initialB = 0;
+    for(int bc=0; bc<B.ncols; bc++) {
+      if(classificationB[bc] == DUPLICATE) continue;
+      keptB++;
+      if(classificationB[bc] == UNKNOWN || classificationB[bc] == INITIAL)
+        initialB++;
+    }
+    int ncols = keptA*keptB - (keptA-finalA)*(keptB-initialB);
 
-      for(int bc=0; bc<B.ncols; bc++) // Loop over cols of B
+    // Form answer, column by column.
+    // Packed spaces are handled by building the columns of the
+    // answer as the rows of its transpose.
+
+    if(A.matrix.bits() && B.matrix.bits())
+    {
+      BitMatrix At = (BitMatrix)A.matrix.transpose().rowMajor();
+      BitMatrix Bt = (BitMatrix)B.matrix.transpose().rowMajor();
+      long cols[][] = new long[ncols][];
+      int c=0;
+
+      for(int ac=0; ac<A.ncols; ac++) // Loop over cols of A
       {
-        if(classificationB[bc] == DUPLICATE) continue;
+        if(classificationA[ac] == DUPLICATE) continue;
 
-        if( (classificationA[ac] == UNKNOWN) ||
-            (classificationA[ac] == FINAL)   ||
-            (classificationB[bc] == UNKNOWN) ||
-            (classificationB[bc] == INITIAL) )
+        for(int bc=0; bc<B.ncols; bc++) // Loop over cols of B
         {
-          ncols++;
+          if(classificationB[bc] == DUPLICATE) continue;
+
+          if( (classificationA[ac] == UNKNOWN) ||
+              (classificationA[ac] == FINAL)   ||
+              (classificationB[bc] == UNKNOWN) ||
+              (classificationB[bc] == INITIAL) )
+          {
+            long col[] = new long[BitMatrix.words(nrows)];
+            System.arraycopy(At.bits(ac), 0, col, 0, At.bits(ac).length);
+            BitMatrix.copyBits(Bt.bits(bc), B.nrows, col, A.nrows);
+            cols[c++] = col;
+          }
         }
       }
+      return new Chu(K, nrows, ncols,
+                     new BitMatrix(cols, nrows).transpose(), false);
     }
 
-    // Form answer, column by column
-
-    int matrix[][] = new int[nrows][ncols];
-    int r=0; int c=0;
+    // The answer is built as its transpose, a column at a time,
+    // so that each column is written contiguously.
+    int cells[] = new int[Matrix.cells(ncols, nrows)];
+    int colA[] = new int[A.nrows];
+    int colB[] = new int[B.nrows];
+    int c=0;
 
     for(int ac=0; ac<A.ncols; ac++) // Loop over cols of A
     {
       if(classificationA[ac] == DUPLICATE) continue;
+      A.matrix.getCol(ac, colA);
 
       for(int bc=0; bc<B.ncols; bc++) // Loop over cols of B
       {
@@ -501,19 +903,77 @@ class Chu implements Conformable
         {
           // Create concatination of A.matrix[*][ac] and B.matrix[*][bc]
 
-          for(int ar=0; ar<A.nrows; ar++)
-            matrix[r++][c] = A.matrix[ar][ac];
-
-          for(int br=0; br<B.nrows; br++)
-            matrix[r++][c] = B.matrix[br][bc];
+          B.matrix.getCol(bc, colB);
+          System.arraycopy(colA, 0, cells, c*nrows, A.nrows);
+          System.arraycopy(colB, 0, cells, c*nrows + A.nrows, B.nrows);
 
-          r=0; c++;
+          c++;
         }
       }
     }
 
     // Build and return result
-    return new Chu(K, nrows, ncols, matrix, false);
+    return new Chu(K, nrows, ncols,
+                   Matrix.build(K, cells, ncols, nrows).transpose(), false);
+  }
+
+  /* Row multiplicity */
+
+  // repeated: Is this space stored as runs of repeated rows?
+  private boolean repeated()
+  {
+    return matrix.distinct() != matrix;
+  }
+
+  // distinctRows: The space made of one copy of each run's row
+  private Chu distinctRows()
+  {
+    Matrix distinct = matrix.distinct();
+    if(distinct == matrix) return this;
+    return new Chu(K, distinct.nrows(), ncols, distinct, false);
+  }
+
+  // stack: C has the distinct rows of A followed by those of B.
+  // Returns C with the runs of A then the runs of B restored.
+  private static Chu stack(Chu C, Chu A, Chu B)
+  {
+    int offset = A.matrix.distinct().nrows();
+    int n = A.matrix.runs() + B.matrix.runs();
+    int[] index = new int[n];
+    int[] count = new int[n];
+    int i=0;
+    for(int k=0; k<A.matrix.runs(); k++,i++) {
+      index[i] = A.matrix.runIndex(k);
+      count[i] = A.matrix.runLength(k);
+    }
+    for(int k=0; k<B.matrix.runs(); k++,i++) {
+      index[i] = offset + B.matrix.runIndex(k);
+      count[i] = B.matrix.runLength(k);
+    }
+    Matrix matrix = RepeatedMatrix.repeat(C.matrix, index, count, n);
+    return new Chu(C.K, matrix.nrows(), C.ncols, matrix, false);
+  }
+
+  // repeatedProduct: The product of the distinct rows, with each
+  // row pair repeated as often as it occurs in the full product.
+  private static Chu repeatedProduct(Chu A, Chu B)
+  {
+    Chu P = product(A.distinctRows(), B.distinctRows());
+    int width = B.matrix.distinct().nrows();
+
+    int n = A.nrows * B.matrix.runs();
+    int[] index = new int[n];
+    int[] count = new int[n];
+    int i=0;
+    for(int ka=0; ka<A.matrix.runs(); ka++)
+      for(int copy=0; copy<A.matrix.runLength(ka); copy++)
+        for(int kb=0; kb<B.matrix.runs(); kb++,i++) {
+          index[i] = A.matrix.runIndex(ka)*width + B.matrix.runIndex(kb);
+          count[i] = B.matrix.runLength(kb);
+        }
+
+    Matrix matrix = RepeatedMatrix.repeat(P.matrix, index, count, n);
+    return new Chu(P.K, matrix.nrows(), P.ncols, matrix, false);
   }
 
   private static final int UNKNOWN = 0;   // < nothing,   > nothing
@@ -525,10 +985,27 @@ class Chu implements Conformable
   // classifyCols: Returns an array of integers which classify
   // the columns of a Chu space into the five catagories above.
 
+  //   Columns are compared in packed form: for each value v in
+  // 1..K-1, the set of rows whose entry is at least v.  Then one
+  // column is <= another (componentwise) iff each of its sets is
+  // inside the matching set of the other.  The sum of a column's
+  // entries (its weight) and a hash of its sets rule out most
+  // pairs before the sets themselves are read.
   private int[] classifyCols()
   {
     int classification[] = new int[ncols];
 
+    long cols[][] = (K <= PACKED_K) ? packCols() : null;
+    long weight[] = new long[ncols];
+    int hash[] = new int[ncols];
+    if(cols != null) {
+      for(int c=0; c<ncols; c++) {
+        for(int w=0; w<cols[c].length; w++)
+          weight[c] += Long.bitCount(cols[c][w]);
+        hash[c] = Arrays.hashCode(cols[c]);
+      }
+    }
+
 OUTER: for(int c=0; c<ncols; c++)
     {
       classification[c] = UNKNOWN;
@@ -542,7 +1019,9 @@ INNER: for(int d=0; d<c; d++)
           continue INNER;
         }
 
-        switch(compareCols(c, d))
+        int order = (cols != null) ? compareCols(cols, weight, hash, c, d)
+                                   : compareCols(c, d);
+        switch(order)
         {
         // col c <> col d, so nothing can be infered
         case IC:
@@ -587,6 +1066,56 @@ INNER: for(int d=0; d<c; d++)
   private static final int GT = 2; // >
   private static final int IC = 3; // <> aka incomparable
 
+  // Spaces with more values than this compare columns entry by entry
+  private static final int PACKED_K = 16;
+
+  // packCols: Each column as K-1 sets of rows, one after another.
+  // The set for value v holds the rows whose entry is at least v.
+  private long[][] packCols()
+  {
+    int words = BitMatrix.words(nrows);
+    long cols[][] = new long[ncols][];
+    Matrix lines = matrix.transpose().rowMajor();
+
+    if(lines.bits()) {
+      for(int c=0; c<ncols; c++) cols[c] = ((BitMatrix)lines).bits(c);
+      return cols;
+    }
+
+    int line[] = new int[nrows];
+    for(int c=0; c<ncols; c++) {
+      lines.getRow(c, line);
+      long col[] = new long[(K-1)*words];
+      for(int r=0; r<nrows; r++)
+        for(int v=1; v<=line[r]; v++)
+          col[(v-1)*words + (r>>>6)] |= 1L << r;
+      cols[c] = col;
+    }
+    return cols;
+  }
+
+  // compareCols: As below, for columns in packed form.
+  // Columns of equal weight are either equal or incomparable.
+  private static int compareCols(long cols[][], long weight[], int hash[],
+                                 int col1, int col2)
+  {
+    if(weight[col1] == weight[col2])
+      return (hash[col1] == hash[col2] &&
+              Arrays.equals(cols[col1], cols[col2])) ? EQ : IC;
+    else if(weight[col1] < weight[col2])
+      return within(cols[col1], cols[col2]) ? LT : IC;
+    else
+      return within(cols[col2], cols[col1]) ? GT : IC;
+  }
+
+  // within: Is each set of rows of col1 inside that of col2?
+  private static boolean within(long col1[], long col2[])
+  {
+    for(int w=0; w<col1.length; w++)
+      if((col1[w] & ~col2[w]) != 0) return false;
+    return true;
+  }
+
   // compareCols: Compares two columns componentwise
   // and returns one of the four code values above.
 
@@ -596,10 +1125,12 @@ INNER: for(int d=0; d<c; d++)
 
     for(int r=0; r<nrows; r++)
     {
-      if(matrix[r][col1] == matrix[r][col2]) {
+      int entry1 = matrix.entry(r,col1);
+      int entry2 = matrix.entry(r,col2);
+      if(entry1 == entry2) {
         continue;
       }
-      else if(matrix[r][col1] < matrix[r][col2]) {
+      else if(entry1 < entry2) {
         switch(result) {
         case EQ: result = LT; break;
         case GT: return IC;
@@ -616,6 +1147,48 @@ INNER: for(int d=0; d<c; d++)
   }
 
   static Chu implication(Chu A, Chu B)
+  {
+    return implication(A, B, 1);
+  }
+
+  static Chu implication(Chu A, Chu B, int parallelism)
+  {
+    return implication(A, B, parallelism, false);
+  }
+
+  // implication: Searches as the context asks.  If context.lazy is
+  // set, only the number of transforms is found now; the rows are
+  // made as they are read (see ImplicationMatrix).  Under
+  // standardization the result is standardized as soon as it is
+  // used, which reads every row, so then it is built at once.
+  static Chu implication(Chu A, Chu B, Context context)
+    throws ExecutionException
+  {
+    if(!context.lazy || context.standardization)
+      return implication(A, B, context.parallelism, context.propagation);
+
+    int K = A.K;
+    if (K > B.K) K = B.K;
+
+    BigInteger count = countTransforms(A, B, context.parallelism,
+                                       context.propagation);
+    if(count.bitLength() > 31)
+      throw new ExecutionException(count+" transforms are too many rows");
+
+    int nrows = count.intValue();
+    Matrix matrix = new ImplicationMatrix(A, B, nrows, context.parallelism,
+                                          context.propagation);
+    return new Chu(K, nrows, A.nrows*B.ncols, matrix, false);
+  }
+
+  // implication: When parallelism > 1 the search for transforms is
+  // split at a shallow prefix of cells into independent searches,
+  // which run on a fork/join pool.  Their transforms are joined in
+  // prefix order, so the result is the same as a sequential search.
+  //   When propagate is true the search is made by a (sequential)
+  // PropagatingGenerator instead.  It finds the same transforms,
+  // but lists them in a different order.
+  static Chu implication(Chu A, Chu B, int parallelism, boolean propagate)
   {
     int K = A.K;
     if (K > B.K) K = B.K;
@@ -626,61 +1199,338 @@ INNER: for(int d=0; d<c; d++)
     // these rows/transforms/matrices is:
     int size = A.nrows*B.ncols;
 
-    // The number of transforms is not known in advance, so
-    // for now they will go in a variable-length Vector:
-    Vector transforms = new Vector();
+    // Entries of the transforms come from B, so if B fits in
+    // bits the transforms are packed as soon as they are built.
+    boolean packed = B.matrix.bits();
 
-    // Build the MatrixGenerator, using prefix trees
+    // The MatrixGenerator(s) use prefix trees
     // of the possible rows and columns of the matrix:
-    MatrixGenerator MG = new MatrixGenerator(B.rowTree(), A.colTree());
+    Tree row_tree = B.rowTree();
+    Tree col_tree = A.colTree();
+
+    // The number of transforms is not known in advance, so
+    // for now they will go in a variable-length Vector.
+    // A transform found several times (because A has repeated
+    // columns or B has repeated rows) is stored once, and the
+    // number of instances goes in counts.
+    Vector<Object> transforms = new Vector<Object>();
+    Vector<Integer> counts = new Vector<Integer>();
+
+    if(propagate) {
+      MatrixGenerator MG = new PropagatingGenerator(row_tree, col_tree);
+      transforms(MG, B, packed, transforms, counts);
+    }
+    else if(parallelism <= 1) {
+      MatrixGenerator MG = new MatrixGenerator(row_tree, col_tree);
+      transforms(MG, B, packed, transforms, counts);
+    }
+    else {
+      // Several pieces per thread, so that work stealing
+      // can even out pieces of very different sizes.
+      Vector<int[]> prefixes = MatrixGenerator.split(row_tree, col_tree,
+                                                     4*parallelism);
+      final Search[] searches = new Search[prefixes.size()];
+      for(int i=0; i<searches.length; i++)
+        searches[i] = new Search(row_tree, col_tree,
+                                 prefixes.elementAt(i), B, packed);
+
+      pool(parallelism).invoke(new RecursiveAction() {
+        protected void compute() { invokeAll(searches); }
+      });
+
+      for(int i=0; i<searches.length; i++) {
+        transforms.addAll(searches[i].transforms);
+        counts.addAll(searches[i].counts);
+      }
+    }
+
+    // We now have all the transforms, so we can package up the result:
+    int num_distinct = transforms.size();
+    Matrix distinct;
+    if(packed) {
+      long rows[][] = new long[num_distinct][];
+      transforms.copyInto(rows);
+      distinct = new BitMatrix(rows, size);
+    }
+    else {
+      int cells[] = new int[Matrix.cells(num_distinct, size)];
+      for(int i=0;i<num_distinct;i++)
+        System.arraycopy(transforms.elementAt(i), 0,
+                         cells, i*size, size);
+      distinct = Matrix.build(B.K, cells, num_distinct, size);
+    }
+
+    int index[] = new int[num_distinct];
+    int count[] = new int[num_distinct];
+    for(int i=0;i<num_distinct;i++) {
+      index[i] = i;
+      count[i] = counts.elementAt(i).intValue();
+    }
+    Matrix matrix = RepeatedMatrix.repeat(distinct, index, count,
+                                          num_distinct);
+    return new Chu(K, matrix.nrows(), size, matrix, false);
+  }
+
+  // transforms: Runs MG to the end, adding the transforms it
+  // finds to transforms as rows (packed if requested) whose
+  // entries are taken from the rows of B.  The number of
+  // instances of each goes in counts, as an Integer.
+  private static void transforms(MatrixGenerator MG, Chu B, boolean packed,
+                                 Vector<Object> transforms,
+                                 Vector<Integer> counts)
+  {
+    int size = MG.nrows()*MG.ncols();
+    Budget budget = Budget.current();
+    long found = 0;
 
     while (MG.next())
     {
       // Count instances of this matrix.
       // Whenever there are multiple choices for a row or column,
-      // the number of instances is multiplied.
-      int num_instances = 1;
-      for(int r=0;r<MG.nrows();r++) {
-        Link l = MG.rowLinks[r];
-        int length=0;
-        while(l!=null) {
-          l=l.next();
-          length++;
-        }
-        num_instances *= length;
-      }
-      for(int c=0;c<MG.ncols();c++) {
-        Link l = MG.colLinks[c];
-        int length=0;
-        while(l!=null) {
-          l=l.next();
-          length++;
-        }
-        num_instances *= length;
-      }
+      // the number of instances is multiplied.  A matrix holds at
+      // most Integer.MAX_VALUE rows, so the product stops there.
+      long num_instances = 1;
+      for(int r=0;r<MG.nrows();r++)
+        num_instances = rows(num_instances * MG.rowCount(r));
+      for(int c=0;c<MG.ncols();c++)
+        num_instances = rows(num_instances * MG.colCount(c));
 
       // Build the current transform
       int[] transform = new int[size];
       for(int r=0;r<MG.nrows();r++)
         for(int c=0;c<MG.ncols();c++)
 	  {
-	    int row_index = MG.rowLinks[r].datum();
-	    int row[] = B.matrix[row_index];
-	    int entry = row[c];
+	    int row_index = MG.rowIndex(r);
+	    int entry = B.matrix.entry(row_index,c);
 	    transform[r*MG.ncols() + c] = entry;
 	  }
+      Object row = (packed ? (Object)BitMatrix.pack(transform, size)
+                           : (Object)transform);
 
       // Record the transform
-      for(int i=0;i<num_instances;i++) {
-        transforms.addElement(transform);
+      transforms.addElement(row);
+      counts.addElement(Integer.valueOf((int)num_instances));
+
+      found = rows(found + num_instances);
+      if(budget != null) budget.checkRows(found);
+    }
+  }
+
+  // rows: n, if a matrix can have that many rows
+  private static long rows(long n)
+  {
+    if(n > Integer.MAX_VALUE)
+      throw new Matrix.TooLarge(n+" transforms are too many rows");
+    return n;
+  }
+
+  // A Search finds the transforms that begin with one prefix.
+  private static class Search extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private Tree row_tree, col_tree;
+    private int prefix[];
+    private Chu B;
+    private boolean packed;
+    private Budget budget;  // the budget of the thread that made this
+    Vector<Object> transforms;
+    Vector<Integer> counts;
+
+    Search(Tree row_tree, Tree col_tree, int prefix[],
+           Chu B, boolean packed)
+    {
+      this.row_tree = row_tree;
+      this.col_tree = col_tree;
+      this.prefix = prefix;
+      this.B = B;
+      this.packed = packed;
+      budget = Budget.current();
+    }
+
+    protected void compute()
+    {
+      Budget previous = Budget.enter(budget);
+      try {
+        MatrixGenerator MG = new MatrixGenerator(row_tree, col_tree, prefix);
+        transforms = new Vector<Object>();
+        counts = new Vector<Integer>();
+        Chu.transforms(MG, B, packed, transforms, counts);
+      }
+      finally {
+        Budget.exit(previous);
       }
     }
+  }
 
-    // We now have all the transforms, so we can package up the result:
-    int new_nrows = transforms.size();
-    int matrix[][] = new int[new_nrows][];
-    transforms.copyInto(matrix);
-    return new Chu(K, new_nrows, size, matrix, false);
+  // transforms: The Chu transforms from A to B, produced one at
+  // a time as they are needed.  The Spliterator can be split for
+  // use by a parallel stream.
+  static Spliterator<Transform> transforms(Chu A, Chu B)
+  {
+    return new TransformSpliterator(A, B);
+  }
+
+  static Iterator<Transform> transformIterator(Chu A, Chu B)
+  {
+    return Spliterators.iterator(transforms(A, B));
+  }
+
+  // countTransforms: The number of Chu transforms from A to B,
+  // which is the number of rows of implication(A,B).  No
+  // transforms are built, so this is a cheap way to size a job.
+  static BigInteger countTransforms(Chu A, Chu B, int parallelism)
+  {
+    return countTransforms(A, B, parallelism, false);
+  }
+
+  static BigInteger countTransforms(Chu A, Chu B, int parallelism,
+                                    boolean propagate)
+  {
+    Tree row_tree = B.rowTree();
+    Tree col_tree = A.colTree();
+
+    if(propagate)
+      return (new PropagatingGenerator(row_tree, col_tree)).count();
+    if(parallelism <= 1)
+      return (new MatrixGenerator(row_tree, col_tree)).count();
+
+    Vector<int[]> prefixes = MatrixGenerator.split(row_tree, col_tree,
+                                                   4*parallelism);
+    final Count[] counts = new Count[prefixes.size()];
+    for(int i=0; i<counts.length; i++)
+      counts[i] = new Count(row_tree, col_tree, prefixes.elementAt(i));
+
+    pool(parallelism).invoke(new RecursiveAction() {
+      protected void compute() { invokeAll(counts); }
+    });
+
+    BigInteger total = BigInteger.ZERO;
+    for(int i=0; i<counts.length; i++)
+      total = total.add(counts[i].count);
+    return total;
+  }
+
+  // A Count counts the transforms that begin with one prefix.
+  private static class Count extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private Tree row_tree, col_tree;
+    private int prefix[];
+    private Budget budget;  // the budget of the thread that made this
+    BigInteger count;
+
+    Count(Tree row_tree, Tree col_tree, int prefix[])
+    {
+      this.row_tree = row_tree;
+      this.col_tree = col_tree;
+      this.prefix = prefix;
+      budget = Budget.current();
+    }
+
+    protected void compute()
+    {
+      Budget previous = Budget.enter(budget);
+      try {
+        count = (new MatrixGenerator(row_tree, col_tree, prefix)).count();
+      }
+      finally {
+        Budget.exit(previous);
+      }
+    }
+  }
+
+  /* Compound operations
+   *   Each gives the same space as the composition of simpler
+   * operations shown in its comment, but works on the matrices
+   * directly, so no space is built on the way.
+   */
+
+  // tensor: A * B = (A -o B.dual()).dual().  The rows of B.dual()
+  // are the columns of B, read in place.  The transforms become
+  // the columns of the result, so their rows are used as they are.
+  static Chu tensor(Chu A, Chu B, Context context)
+    throws ExecutionException
+  {
+    Chu T = implication(A, B.dual(), context);
+    return new Chu(T.K, T.ncols, T.nrows, T.matrix.transpose(), false);
+  }
+
+  // plus: A + B = (A.dual() & B.dual()).dual().  Row r of the
+  // result is row r of A (or row r-A.nrows of B) spread over
+  // the columns, which are pairs of a column of A and one of B.
+  static Chu plus(Chu A, Chu B)
+  {
+    if (A == null || B == null) return null;
+    int K = A.K;  if (B.K > K) K=B.K;
+
+    Matrix matrix = new ProductMatrix(A.matrix.transpose(),
+                                      B.matrix.transpose(), K).transpose();
+    return new Chu(K, A.nrows + B.nrows, A.ncols * B.ncols, matrix, false);
+  }
+
+  // entailment: A => B = (!A) -o B, where !A is A.coQuery()
+  static Chu entailment(Chu A, Chu B, Context context)
+    throws ExecutionException
+  {
+    return implication(A.coQuery(), B, context);
+  }
+
+  /* Mapped results
+   *   These write their result straight into a file (see
+   * MappedMatrix.store) and return it mapped from there, so it
+   * need not fit on the heap.  The file is in the format of
+   * ChuFormat, so it is also a saved copy of the result.  The
+   * calculator uses them when it maps results (see
+   * Calc.setMapDirectory, and Batch's -map option).
+   */
+
+  // implication: The transforms are counted first, and then made
+  // one at a time, as they are written.  The file holds them as
+  // found, not standardized.
+  static Chu implication(Chu A, Chu B, Context context, File file)
+    throws IOException, ExecutionException
+  {
+    Context lazy = new Context(context.k, false, context.parallelism);
+    lazy.propagation = context.propagation;
+    lazy.lazy = true;
+    return MappedMatrix.store(implication(A, B, lazy), file);
+  }
+
+  // product: The rows are read from the product view
+  static Chu product(Chu A, Chu B, File file) throws IOException
+  {
+    return MappedMatrix.store(product(A, B), file);
+  }
+
+  // number: A space holding n as a single row of decimal digits.
+  // It is not standard when a digit repeats, since its columns do.
+  static Chu number(BigInteger n)
+  {
+    String digits = n.toString();
+    int row[][] = new int[1][digits.length()];
+    for(int c=0;c<digits.length();c++)
+      row[0][c] = Character.digit(digits.charAt(c),10);
+    return new Chu(10, 1, digits.length(),
+                   Matrix.build(10, row, digits.length()), false);
+  }
+
+  // pool: The fork/join pool used by parallel searches with the
+  // given degree of parallelism.  There is one for each degree
+  // asked for, and none is ever shut down, since a search may
+  // still be running on it.  Idle workers die after a while.
+  private static Hashtable<Integer,ForkJoinPool> pools =
+    new Hashtable<Integer,ForkJoinPool>();
+
+  private static synchronized ForkJoinPool pool(int parallelism)
+  {
+    ForkJoinPool pool = pools.get(Integer.valueOf(parallelism));
+    if(pool == null) {
+      pool = new ForkJoinPool(parallelism);
+      pools.put(Integer.valueOf(parallelism), pool);
+    }
+    return pool;
   }
 
   /* Conformable interface */
@@ -691,7 +1541,7 @@ INNER: for(int d=0; d<c; d++)
     else return this;
   }
 
-  private Chu standardize()
+  private synchronized Chu standardize()
   {
     // If the standard version of this space is not known,
     // compute it and keep a pointer to it.
@@ -699,11 +1549,16 @@ INNER: for(int d=0; d<c; d++)
     {
       // new_nrows counts non-repeat rows
       // unique_rows[] contains indexes of non-repeat rows;
-      // (Similarly for cols)
-      int[] unique_rows = new int[nrows];
+      // (Similarly for cols, which are sorted as the rows
+      // of the transpose)
+      // Only one copy of each run of repeated rows is looked at,
+      // so indexes refer to the distinct rows.
+      Matrix distinct = matrix.distinct();
+      int[] unique_rows = new int[distinct.nrows()];
       int[] unique_cols = new int[ncols];
-      int new_nrows = row_sort(unique_rows);
-      int new_ncols = col_sort(unique_cols);
+      int new_nrows = line_sort(distinct, K, unique_rows);
+      int new_ncols = line_sort(distinct.transpose(), K, unique_cols);
+      Budget.checkpoint();
 
       if((nrows==new_nrows) && (ncols==new_ncols))
       { // Already standardized!
@@ -711,10 +1566,8 @@ INNER: for(int d=0; d<c; d++)
       }
       else
       { // Build the standardized version
-        int new_matrix[][] = new int[new_nrows][new_ncols];
-        for(int r=0; r<new_nrows; r++)
-          for(int c=0; c<new_ncols; c++)
-            new_matrix[r][c] = matrix[unique_rows[r]][unique_cols[c]];
+        Matrix new_matrix = distinct.select(unique_rows, new_nrows,
+                                            unique_cols, new_ncols);
 
         standard = new Chu(K,new_nrows,new_ncols,new_matrix,true);
       }
@@ -723,114 +1576,71 @@ INNER: for(int d=0; d<c; d++)
     return standard;
   }
 
-  private int row_sort(int[] unique_rows)
+  // line_sort: Records (in unique_lines) and counts all unique
+  // rows of lines, in lexicographic order.  Of several copies of
+  // a row, the first is kept.
+  //   The rows are ordered by an LSD radix sort: a stable counting
+  // sort on each column, from the last to the first.  Packed rows
+  // are sorted eight columns at a time.  Copies of a row end up
+  // next to each other, first copy first.
+  private static int line_sort(Matrix lines, int K, int[] unique_lines)
   {
-    /* Record(unique_rows) and count(num_unique) all unique rows.
-     * Throw out all copies.
+    int nrows = lines.nrows();
+    int ncols = lines.ncols();
+
+    int[] order = new int[nrows];
+    int[] spare = new int[nrows];
+    for(int r=0;r<nrows;r++) order[r] = r;
+    Budget budget = Budget.current();  // checked once a pass
+
+    if(lines.bits())
+    {
+      BitMatrix packed = (BitMatrix)lines.rowMajor();
+      lines = packed;
+      int[] count = new int[256+1];
+      for(int c=((ncols-1)>>>3)<<3; ncols>0 && c>=0; c-=8) {
+        if(budget != null) budget.check(1);
+        for(int d=0;d<=256;d++) count[d] = 0;
+        for(int r=0;r<nrows;r++)
+          count[digit(packed.bits(order[r]), c)+1]++;
+        for(int d=0;d<256;d++) count[d+1] += count[d];
+        for(int r=0;r<nrows;r++)
+          spare[count[digit(packed.bits(order[r]), c)]++] = order[r];
+        int[] swap = order; order = spare; spare = swap;
+      }
+    }
+    else
+    {
+      int[] count = new int[K+1];
+      for(int c=ncols-1; c>=0; c--) {
+        if(budget != null) budget.check(1);
+        for(int d=0;d<=K;d++) count[d] = 0;
+        for(int r=0;r<nrows;r++)
+          count[lines.entry(order[r],c)+1]++;
+        for(int d=0;d<K;d++) count[d+1] += count[d];
+        for(int r=0;r<nrows;r++)
+          spare[count[lines.entry(order[r],c)]++] = order[r];
+        int[] swap = order; order = spare; spare = swap;
+      }
+    }
+
+    /* Throw out all copies.
      */
     int num_unique = 0;
-    sort: for(int r=0;r<nrows;r++) {
-
-      /* Look for row r in the current set of unique rows.
-       * If row r is not a copy, insert it into the set.
-       * l,h mark bounds of possible insertion locations
-       */
-      int l=0,h=num_unique;
-      search: while(l<h) {
-
-        /* Does row unique_rows[m] match row r?
-         */
-        int m = (l+h)/2;
-        compare: for(int c=0;c<ncols;c++) {
-
-          /* scan quickly for differences
-           */
-          if (matrix[unique_rows[m]][c] == matrix[r][c])
-            continue compare;
-
-          /* row unique_rows[m] does not match row r.
-           * narrow range and continue search.
-           */
-          if (matrix[unique_rows[m]][c] > matrix[r][c])
-            h=m;
-          else
-            l=m+1;
-          continue search;
-
-        } // end compare
-
-        /* If we get here, we have a match.
-         * Throw out row r
-         */
-        continue sort;
-
-      } // end search
-
-      /* We have a new row.  Insert it!
-       */
-      for(int i=num_unique;i>l;i--)
-        unique_rows[i] = unique_rows[i-1];
-      unique_rows[l] = r;
-      num_unique++;
-
-    } // end sort
-
+    for(int r=0;r<nrows;r++) {
+      if(num_unique == 0 ||
+         lines.compareRows(unique_lines[num_unique-1], order[r]) != 0)
+        unique_lines[num_unique++] = order[r];
+    }
     return num_unique;
   }
 
-  private int col_sort(int[] unique_cols)
+  // digit: Columns c..c+7 of a packed row as a number from 0 to
+  // 255, with column c as the most significant bit.
+  private static int digit(long[] row, int c)
   {
-    /* Record (in unique_cols) and count (in num_unique) all unique cols.
-     * Throw out all copies.
-     */
-    int num_unique = 0;
-    sort: for(int c=0;c<ncols;c++) {
-
-      /* Look for col c in the current set of unique cols.
-       * If col c is not a copy, insert it into the set.
-       * l,h mark bounds of possible insertion locations
-       */
-      int l=0,h=num_unique;
-      search: while(l<h) {
-
-        /* Does col unique_cols[m] match col c?
-         */
-        int m = (l+h)/2;
-        compare: for(int r=0;r<nrows;r++) {
-
-          /* scan quickly for differences
-           */
-          if (matrix[r][unique_cols[m]] == matrix[r][c])
-            continue compare;
-
-          /* col unique_rcols[m] does not match col c.
-           * narrow range and continue search.
-           */
-          if (matrix[r][unique_cols[m]] > matrix[r][c])
-            h=m;
-          else
-            l=m+1;
-          continue search;
-
-        } // end compare
-
-        /* If we get here, we have a match.
-         * Throw out col c
-         */
-        continue sort;
-
-      } // end search
-
-      /* We have a new col.  Insert it!
-       */
-      for(int i=num_unique;i>l;i--)
-        unique_cols[i] = unique_cols[i-1];
-      unique_cols[l] = c;
-      num_unique++;
-
-    } // end sort
-
-    return num_unique;
+    int bits = (int)(row[c>>>6] >>> (c & 63)) & 0xFF;
+    return Integer.reverse(bits) >>> 24;
   }
 
   public static void main(String args[])
@@ -863,10 +1673,201 @@ INNER: for(int d=0; d<c; d++)
         System.out.println(implication(q.dual(), q).unparse());
         System.out.print("\n------------------------\n");
       }
+
+      // The compound operations must agree with their definitions
+      Context context = new Context(2, false);
+      for(int i=0; i<chus.length; i++) {
+        Chu A = chus[i];
+        same("!", A.coQuery(), A.dual().query().dual());
+        same("!", A.dual().coQuery(), A.query().dual());
+      }
+      for(int i=0; i<chus.length; i++) {
+        for(int j=0; j<chus.length; j++) {
+          Chu A = chus[i], B = chus[j];
+          same("+", plus(A, B), product(A.dual(), B.dual()).dual());
+          same("*", tensor(A, B, context),
+               implication(A, B.dual()).dual());
+          same("=>", entailment(A, B, context),
+               implication(A.dual().query().dual(), B));
+        }
+      }
+
+      // A K=2 space is closed in the same order however it is stored
+      for(int i=0; i<chus.length; i++) {
+        Chu A = chus[i];
+        if(A.K != 2) continue;
+        int cells[] = new int[A.nrows*A.ncols];
+        for(int r=0; r<A.nrows; r++)
+          for(int c=0; c<A.ncols; c++) cells[r*A.ncols+c] = A.entry(r,c);
+        Chu wide = new Chu(2, ByteMatrix.pack(cells, A.nrows, A.ncols), false);
+        same("?", wide.query(), A.query());
+        same("!", wide.coQuery(), A.coQuery());
+      }
+      Chu empty = new Chu(2, ByteMatrix.pack(new int[0], 0, 1), false);
+      same("?", empty.query(),
+           new Chu(2, BitMatrix.pack(new int[0], 0, 1), false).query());
+
+      // Empty spaces, and spaces with repeated rows or columns, give
+      // results stored as runs of rows.  Those must standardize as
+      // the same rows stored one by one would.
+      Chu[] odd = new Chu[5];
+      odd[0] = new Chu("2", "0", "0", "");
+      odd[1] = new Chu("2", "0", "2", "");
+      odd[2] = new Chu("2", "2", "0", "");
+      odd[3] = new Chu(null, null, null, "10\n10\n01\n");
+      odd[4] = new Chu(null, null, null, "110\n011\n");
+      Context unique = new Context(2, true);
+      Context lazy = new Context(2, false), lazyUnique = new Context(2, true);
+      lazy.lazy = lazyUnique.lazy = true;
+      for(int i=0; i<odd.length+chus.length; i++) {
+        for(int j=0; j<odd.length+chus.length; j++) {
+          Chu A = (i<odd.length ? odd[i] : chus[i-odd.length]);
+          Chu B = (j<odd.length ? odd[j] : chus[j-odd.length]);
+          Chu I = implication(A, B);
+          same("-o", I.conform(unique), plain(I).conform(unique));
+          same("_|_", I.dual().conform(unique),
+               plain(I.dual()).conform(unique));
+          same("?", I.dual().query(), plain(I.dual()).query());
+          same(";", sequence(I.dual(), A), sequence(plain(I.dual()), A));
+          same("-o#", number(countTransforms(A, B, 1)),
+               number(BigInteger.valueOf(I.nrows)));
+          same("-o#", number(countTransforms(A, B, 2)),
+               number(BigInteger.valueOf(I.nrows)));
+          same("-o", implication(A, B, lazy), I);
+          same("-o", implication(A, B, lazyUnique).conform(unique),
+               I.conform(unique));
+          same("-o", rows(I, transformIterator(A, B)), I);
+          same("-o", rows(I, StreamSupport.stream(transforms(A, B), true)
+                                          .collect(Collectors.toList())
+                                          .iterator()), I);
+          if(A.K > 2 || B.K > 2) continue;
+          Chu T = implication(A.dual(), B.dual()).dual();
+          same("*", T.conform(unique), plain(T).conform(unique));
+          same("&", product(T, T.dual()), product(plain(T), plain(T).dual()));
+          same("U", choice(T, T.dual()), choice(plain(T), plain(T).dual()));
+        }
+      }
+
+      // Matrices with more entries than an array holds are refused
+      try {
+        Matrix.cells(1 << 16, 1 << 16);
+        System.out.println("cells DISAGREES");
+      }
+      catch(Matrix.TooLarge x) {
+        System.out.println("cells agrees");
+      }
+
+      // Entries of B beyond A's K match nothing in A
+      Chu low = new Chu(null, null, null, "12\n00\n");
+      Chu high = new Chu(null, null, null, "1\n3\n1\n3\n");
+      Chu none = new Chu("3", "0", "2", "");
+      same("-o", implication(low, high), none);
+      same("-o", implication(low, high, 2), none);
+      same("-o", implication(low, high, 1, true), none);
+      same("-o", implication(low, high, lazy), none);
+      same("-o#", number(countTransforms(low, high, 1)),
+           number(BigInteger.ZERO));
+
+      // A number whose digits repeat is not standard
+      Chu hundred = number(BigInteger.valueOf(100));
+      same("-o#", hundred.conform(unique), new Chu("10", "1", "2", "01\n"));
+
+      // Mapped results are the same spaces, and print the same
+      Context multi = new Context(2, false);
+      for(int i=0; i<odd.length; i++) {
+        Chu A = odd[i], B = odd[(i+1)%odd.length];
+        File file = File.createTempFile("chu", ".chus");
+        file.deleteOnExit();
+        same("-o", implication(A, B, multi, file), implication(A, B));
+        file = File.createTempFile("chu", ".chus");
+        file.deleteOnExit();
+        Chu P = product(A, B, file);
+        same("&", P, product(A, B));
+        StringWriter text = new StringWriter();
+        P.unparse(text);
+        System.out.println("unparse "+(text.toString().equals(P.unparse())
+                                       ? "agrees" : "DISAGREES"));
+      }
+
+      // A file's standardized flag is not taken on trust
+      ByteArrayOutputStream saved = new ByteArrayOutputStream();
+      ChuFormat.write(odd[3], saved);
+      byte bytes[] = saved.toByteArray();
+      bytes[24] |= ChuFormat.STANDARD;
+      Chu read = ChuFormat.read(new ByteArrayInputStream(bytes));
+      same("read", read.conform(unique), odd[3].conform(unique));
+
+      // So are more transforms than a matrix has rows
+      StringBuilder zeros = new StringBuilder();
+      for(int r=0; r<34; r++) zeros.append("0\n");
+      Chu tall = new Chu("2", "34", "1", zeros.toString());
+      Chu two = new Chu("2", "2", "1", "0\n0\n");
+      System.out.println("-o# gives "+countTransforms(tall, two, 1));
+      try {
+        implication(tall, two, lazy);
+        System.out.println("-o DISAGREES");
+      }
+      catch(ExecutionException x) {
+        System.out.println("-o agrees");
+      }
+      // Eagerly too: 2^31 or 2^34 transforms would wrap to 1 or 0 rows
+      for(int n=31; n<=34; n+=3) {
+        Chu tallN = new Chu("2", ""+n, "1", zeros.substring(0, 2*n));
+        for(int p=1; p<=2; p++)
+          try {
+            implication(tallN, two, p, false);
+            System.out.println("-o DISAGREES");
+          }
+          catch(Matrix.TooLarge x) {
+            System.out.println("-o agrees");
+          }
+      }
     }
     catch(ParseException x) {
       System.out.println(x.getMessage());
     }
+    catch(ExecutionException x) {
+      System.out.println(x.getMessage());
+    }
+    catch(IOException x) {
+      System.out.println(x.getMessage());
+    }
+  }
+
+  // plain: The same space, with each row stored by itself
+  private static Chu plain(Chu A)
+  {
+    int cells[] = new int[A.nrows*A.ncols];
+    for(int r=0; r<A.nrows; r++)
+      for(int c=0; c<A.ncols; c++) cells[r*A.ncols+c] = A.entry(r,c);
+    return new Chu(A.K, Matrix.build(A.K, cells, A.nrows, A.ncols), false);
+  }
+
+  // rows: The transforms, in order, as the rows of a space like I
+  private static Chu rows(Chu I, Iterator<Transform> transforms)
+  {
+    Vector<int[]> rows = new Vector<int[]>();
+    while(transforms.hasNext()) {
+      int line[] = new int[I.ncols];
+      transforms.next().getCells(line);
+      rows.addElement(line);
+    }
+    int cells[][] = rows.toArray(new int[rows.size()][]);
+    return new Chu(I.K, cells.length, I.ncols,
+                   Matrix.build(I.K, cells, I.ncols), false);
+  }
+
+  private static void same(String op, Chu fused, Chu composed)
+    throws ParseException
+  {
+    boolean same = fused.K == composed.K &&
+                   fused.nrows == composed.nrows &&
+                   fused.ncols == composed.ncols &&
+                   fused.unparse().equals(composed.unparse()) &&
+                   fused.equals(composed) &&
+                   Arrays.equals(fused.canonicalFingerprint(),
+                                 composed.canonicalFingerprint());
+    System.out.println(op + (same ? " agrees" : " DISAGREES"));
   }
 }
 
@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/* ChuFormat reads and writes Chu spaces in a compact binary form.
+ * Unlike the text form it holds any K, and it takes a bit per entry
+ * when K=2.  All numbers are little-endian.
+ *
+ * Header (32 bytes):
+ *   0  magic    the bytes 'C' 'H' 'U' 'S'
+ *   4  version  1
+ *   8  K
+ *  12  nrows
+ *  16  ncols
+ *  20  width    bits per entry: the least of 1,2,4,8,16,32 that
+ *               holds every value below K
+ *  24  flags    bit 0 is set if the space was standardized when
+ *               written.  Readers don't rely on it: a space read
+ *               back is standardized (which is only a check, for
+ *               a space that already is) when it is used.
+ *  28  words    64-bit words per row: (ncols*width+63)/64
+ *
+ * Body: nrows rows of words 64-bit words each.  Entry c of a row
+ * is the width bits starting at bit c*width of the row (bit i of a
+ * row being bit i%64 of word i/64), so no entry crosses a word.
+ * Bits past the last entry are zero.  For K<=2 a row is laid out
+ * exactly as a BitMatrix row.
+ *
+ * Spaces are written and read a row at a time through a small
+ * buffer, so nothing but the space itself is held in memory.
+ */
+class ChuFormat
+{
+  static final int VERSION = 1;
+  static final int HEADER = 32;    // bytes
+  static final int STANDARD = 1;   // flag
+
+  private static final byte MAGIC[] = { 'C', 'H', 'U', 'S' };
+  private static final int BUFFER = 1 << 16;  // bytes, at least
+
+  // width: Bits per entry for entries in [0,K-1]
+  static int width(int K)
+  {
+    int width = 1;
+    while(width < 32 && (1L << width) < K) width <<= 1;
+    return width;
+  }
+
+  // words: 64-bit words per row
+  static int words(int ncols, int width)
+  {
+    long bits = (long)ncols*width;
+    if(bits > (long)Integer.MAX_VALUE*64 - 63)
+      throw new IllegalArgumentException(ncols+" columns are too many");
+    return (int)((bits+63) >>> 6);
+  }
+
+  /* Headers */
+
+  // A Header holds the fields of a file's header.
+  static class Header
+  {
+    int K, nrows, ncols, width, flags, words;
+
+    Header(int K, int nrows, int ncols, boolean standardized)
+    {
+      this.K = K;
+      this.nrows = nrows;
+      this.ncols = ncols;
+      width = width(K);
+      flags = standardized ? STANDARD : 0;
+      words = words(ncols, width);
+    }
+
+    Header(ByteBuffer buffer) throws IOException
+    {
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      for(int i=0;i<MAGIC.length;i++)
+        if(buffer.get() != MAGIC[i])
+          throw new IOException("Not a Chu space file");
+      int version = buffer.getInt();
+      if(version != VERSION)
+        throw new IOException("Can't read version "+version+
+                              " of the Chu space format");
+      K = buffer.getInt();
+      nrows = buffer.getInt();
+      ncols = buffer.getInt();
+      width = buffer.getInt();
+      flags = buffer.getInt();
+      words = buffer.getInt();
+
+      if(K < 0 || nrows < 0 || ncols < 0 ||
+         width != width(K) || words != words(ncols, width))
+        throw new IOException("Bad Chu space header: K="+K+", "+
+                              nrows+"x"+ncols+", width "+width+
+                              ", "+words+" words per row");
+    }
+
+    boolean standardized() { return (flags & STANDARD) != 0;}
+
+    long rowBytes() { return 8L*words;}
+    long bodyBytes() { return rowBytes()*nrows;}
+
+    void put(ByteBuffer buffer)
+    {
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(K);
+      buffer.putInt(nrows);
+      buffer.putInt(ncols);
+      buffer.putInt(width);
+      buffer.putInt(flags);
+      buffer.putInt(words);
+    }
+  }
+
+  /* Writing */
+
+  static void write(Chu chu, OutputStream out) throws IOException
+  {
+    write(chu, Channels.newChannel(out));
+    out.flush();
+  }
+
+  // write: Writes at the channel's position (for a FileChannel)
+  static void write(Chu chu, FileChannel channel) throws IOException
+  {
+    write(chu, (WritableByteChannel)channel);
+  }
+
+  static void write(Chu chu, WritableByteChannel channel) throws IOException
+  {
+    Header header = new Header(chu.K(), chu.nrows(), chu.ncols(),
+                               chu.standardized());
+    ByteBuffer buffer = buffer(header);
+    header.put(buffer);
+
+    // A mapped space is laid out as in a file already
+    if(chu.matrix() instanceof MappedMatrix) {
+      drain(buffer, channel);
+      ((MappedMatrix)chu.matrix()).writeBody(channel);
+      return;
+    }
+
+    // Each distinct row is encoded once, and written once per copy
+    Matrix matrix = chu.matrix();
+    Matrix distinct = matrix.distinct();
+    long row[] = new long[header.words];
+    int line[] = new int[header.ncols];
+    for(int k=0;k<matrix.runs();k++) {
+      encode(distinct, matrix.runIndex(k), header, line, row);
+      for(int n=0;n<matrix.runLength(k);n++) {
+        if(buffer.remaining() < header.rowBytes()) drain(buffer, channel);
+        for(int w=0;w<row.length;w++) buffer.putLong(row[w]);
+      }
+    }
+    drain(buffer, channel);
+  }
+
+  // encode: Packs row r of matrix into row, as laid out in a file
+  static void encode(Matrix matrix, int r, Header header,
+                     int line[], long row[])
+  {
+    if(header.width == 1 && matrix instanceof BitMatrix) {
+      System.arraycopy(((BitMatrix)matrix).bits(r), 0, row, 0, row.length);
+      return;
+    }
+
+    matrix.getRow(r, line);
+    pack(line, header, row);
+  }
+
+  // pack: Packs a row of entries into row, as laid out in a file
+  static void pack(int line[], Header header, long row[])
+  {
+    for(int w=0;w<row.length;w++) row[w] = 0;
+    int width = header.width;
+    long mask = (1L << width) - 1;
+    for(int c=0;c<header.ncols;c++) {
+      long bit = (long)c*width;
+      row[(int)(bit >>> 6)] |= (line[c] & mask) << (bit & 63);
+    }
+  }
+
+  static void drain(ByteBuffer buffer, WritableByteChannel channel)
+    throws IOException
+  {
+    buffer.flip();
+    while(buffer.hasRemaining()) channel.write(buffer);
+    buffer.clear();
+  }
+
+  /* Reading */
+
+  static Chu read(InputStream in) throws IOException
+  {
+    return read(Channels.newChannel(in));
+  }
+
+  // read: Reads from the channel's position (for a FileChannel)
+  static Chu read(FileChannel channel) throws IOException
+  {
+    return read((ReadableByteChannel)channel);
+  }
+
+  static Chu read(ReadableByteChannel channel) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER);
+    fill(buffer, channel);
+    Header header = new Header(buffer);
+
+    int nrows = header.nrows, ncols = header.ncols, K = header.K;
+    Body body = new Body(header, channel);
+
+    Matrix matrix;
+    long row[] = new long[header.words];
+    if(K <= 2) {
+      // Rows are BitMatrix rows already
+      long rows[][] = new long[nrows][];
+      for(int r=0;r<nrows;r++) {
+        rows[r] = new long[header.words];
+        body.next(rows[r]);
+        check(rows[r], header, r);
+      }
+      matrix = new BitMatrix(rows, ncols);
+    }
+    else {
+      if((long)nrows*ncols > Matrix.MAX_CELLS)
+        throw new IOException(nrows+"x"+ncols+" is too large to read"+
+                              " into memory");
+      int line[] = new int[ncols];
+      byte bytes[] = (K <= 256) ? new byte[nrows*ncols] : null;
+      int ints[] = (K <= 256) ? null : new int[nrows*ncols];
+      for(int r=0;r<nrows;r++) {
+        body.next(row);
+        decode(row, header, line);
+        for(int c=0;c<ncols;c++) {
+          if(line[c] >= K || line[c] < 0)
+            throw new IOException("Entry ("+r+","+c+") is "+
+                                  (line[c] & 0xFFFFFFFFL)+", not below K="+K);
+          if(bytes != null) bytes[r*ncols+c] = (byte)line[c];
+          else ints[r*ncols+c] = line[c];
+        }
+      }
+      matrix = (bytes != null) ? (Matrix)new ByteMatrix(bytes, nrows, ncols)
+                               : (Matrix)new IntMatrix(ints, nrows, ncols);
+    }
+    return new Chu(K, matrix, false);
+  }
+
+  // decode: Unpacks the entries of a row, as laid out in a file
+  static void decode(long row[], Header header, int line[])
+  {
+    int width = header.width;
+    long mask = (1L << width) - 1;
+    for(int c=0;c<header.ncols;c++) {
+      long bit = (long)c*width;
+      line[c] = (int)((row[(int)(bit >>> 6)] >>> (bit & 63)) & mask);
+    }
+  }
+
+  // check: For K<=2, entries must be below K, and bits past the
+  // end of the row must be zero.
+  private static void check(long row[], Header header, int r)
+    throws IOException
+  {
+    int ncols = header.ncols;
+    boolean ok = true;
+    if(row.length > 0 && (ncols & 63) != 0)
+      ok = (row[row.length-1] >>> (ncols & 63)) == 0;
+    if(header.K < 2)
+      for(int w=0;w<row.length;w++) ok &= (row[w] == 0);
+    if(!ok)
+      throw new IOException("Row "+r+" has bits set beyond its entries");
+  }
+
+  // A Body reads the rows of a space that follow its header.  It
+  // never reads past the last row, so a stream can hold more after.
+  private static class Body
+  {
+    private Header header;
+    private ReadableByteChannel channel;
+    private ByteBuffer buffer;
+    private long left;   // bytes of the body not yet read in
+
+    Body(Header header, ReadableByteChannel channel)
+    {
+      this.header = header;
+      this.channel = channel;
+      buffer = buffer(header);
+      buffer.limit(0);   // empty
+      left = header.bodyBytes();
+    }
+
+    // next: Reads the next row, refilling the buffer as needed
+    void next(long row[]) throws IOException
+    {
+      if(buffer.remaining() < header.rowBytes()) {
+        buffer.compact();
+        int room = buffer.capacity() - buffer.position();
+        buffer.limit(buffer.position() + (int)Math.min(room, left));
+        while(buffer.position() < header.rowBytes()) {
+          int n = channel.read(buffer);
+          if(n < 0) throw new IOException("Chu space file ends early");
+          left -= n;
+        }
+        buffer.flip();
+      }
+      for(int w=0;w<row.length;w++) row[w] = buffer.getLong();
+    }
+  }
+
+  // fill: Reads until buffer is full
+  private static void fill(ByteBuffer buffer, ReadableByteChannel channel)
+    throws IOException
+  {
+    while(buffer.hasRemaining())
+      if(channel.read(buffer) < 0)
+        throw new IOException("Chu space file ends early");
+    buffer.flip();
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  // buffer: A little-endian buffer big enough for the header or
+  // a row, whichever is larger
+  private static ByteBuffer buffer(Header header)
+  {
+    long size = Math.max(BUFFER, Math.max(HEADER, header.rowBytes()));
+    if(size > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Rows are too long to buffer");
+    ByteBuffer buffer = ByteBuffer.allocate((int)size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+}
@@ -2,11 +2,20 @@ class Context
 {
   int k;
   boolean standardization;
+  int parallelism;  // Number of threads a search may use
+  boolean propagation;  // Search for transforms by constraint propagation
+  boolean lazy;  // Make the rows of implications only as they are read
 
   Context(int k, boolean standardization)
+  {
+    this(k, standardization, 1);
+  }
+
+  Context(int k, boolean standardization, int parallelism)
   {
     this.k = k;
     this.standardization = standardization;
+    this.parallelism = parallelism;
   }
 }
 
@@ -0,0 +1,75 @@
+import java.util.IdentityHashMap;
+
+// An Evaluation remembers the result of every operator node
+// evaluated in one run of a Program, so that a node shared by
+// several statements (see Expression.parse) is applied once per
+// run, however small the result cache is.  As in ResultCache, a
+// result is reused only while the node's operands are the same
+// spaces and K and standardization are the same; a node that reads
+// a variable the run has since rebound is applied again, and its
+// new result replaces the old one.
+//   Statements run together may reach the same node at once.  The
+// first applies it while the others wait for its result.  A node
+// holds its lock only while its operator is applied, after its
+// operands are evaluated, so no two locks are ever held together.
+//   The results are dropped with the Evaluation at the end of the
+// run; the cache decides which of them outlive it.
+class Evaluation
+{
+  private IdentityHashMap<Expression,Result> results;
+
+  Evaluation()
+  {
+    results = new IdentityHashMap<Expression,Result>();
+  }
+
+  // apply: The result of node, which applies operator to left and
+  // (unless it is null, for a unary operator) right.
+  Chu apply(Calc calc, Expression node, String operator,
+            Chu left, Chu right)
+    throws ExecutionException
+  {
+    Result result;
+    synchronized(this) {
+      result = results.get(node);
+      if(result == null) {
+        result = new Result();
+        results.put(node, result);
+      }
+    }
+
+    synchronized(result) {
+      Context context = calc.getContext();
+      if(result.value != null && result.left == left &&
+         result.right == right && result.k == context.k &&
+         result.standardization == context.standardization) {
+        // Reused results count against the row limit, as cached ones do
+        try {
+          Budget.rows(result.value.nrows());
+        }
+        catch(Budget.Exceeded x) {
+          throw new BudgetExceededException(operator+": "+x.getMessage());
+        }
+        return result.value;
+      }
+
+      result.value = null;
+      Chu value = (right == null) ? calc.apply(operator, left)
+                                  : calc.apply(left, operator, right);
+      result.left = left;
+      result.right = right;
+      result.k = context.k;
+      result.standardization = context.standardization;
+      result.value = value;
+      return value;
+    }
+  }
+
+  // A Result is the last result of one node, with what it was made from
+  private static class Result
+  {
+    Chu left, right, value;
+    int k;
+    boolean standardization;
+  }
+}
@@ -1,40 +1,46 @@
-import java.util.StringTokenizer;
+import java.util.Hashtable;
+import java.util.Vector;
 
 abstract class Expression
 {
+  // parse: Parses a (possibly nested) expression.  Unary operators
+  // bind tighter than binary ones, and binary operators all have
+  // the same precedence and group to the left, so
+  //     _|_ p -o q U r   is   ((_|_ p) -o q) U r
+  // Parentheses group as usual.  Operators and operands are
+  // separated by whitespace; parentheses need not be.
   static Expression parse(String expText) throws SyntaxException
   {
-    StringTokenizer tokenizer = new StringTokenizer(expText," \t");
-    int numtokens = tokenizer.countTokens();
-
-    if (numtokens<1||numtokens>3)
-      throw new SyntaxException("right hand side \""+expText+
-                                "\" has "+numtokens+
-                                " tokens (should be 1-3)");
-
-    String tokens[] = new String[numtokens];
-    for(int i=0;i<numtokens;i++) tokens[i] = tokenizer.nextToken();
-
-    Expression result = null;
-    switch(numtokens) {
-    case 1:
-      result = new Identifier(tokens[0]);
-      break;
-    case 2:
-      result = new UnaryExpression(tokens[0],
-                                   new Identifier(tokens[1]));
-      break;
-    case 3:
-      result = new BinaryExpression(new Identifier(tokens[0]),
-                                    tokens[1],
-                                    new Identifier(tokens[2]));
-      break;
-    }
-    return result;
+    return parse(expText, new Hashtable<String,Expression>());
+  }
+
+  // parse: The same, sharing nodes with earlier expressions.  nodes
+  // maps the show() string of every node built so far to the node,
+  // so a subexpression that appears more than once (here or in an
+  // earlier expression parsed with the same table) is a single
+  // node, and the expressions form a DAG rather than trees.
+  static Expression parse(String expText, Hashtable<String,Expression> nodes)
+    throws SyntaxException
+  {
+    ExpressionParser parser = new ExpressionParser(expText, nodes);
+    return parser.parse();
   }
 
   abstract String show();
-  abstract Chu eval(Calc c) throws ExecutionException;
+
+  // eval: The value of this expression.  A node it reaches more
+  // than once is applied once.
+  Chu eval(Calc c) throws ExecutionException
+  {
+    return eval(c, new Evaluation());
+  }
+
+  // eval: The same, reusing the results of nodes already evaluated
+  // in run (see Evaluation).
+  abstract Chu eval(Calc c, Evaluation run) throws ExecutionException;
+
+  // identifiers: Adds the names this expression reads to names
+  abstract void identifiers(Hashtable<String,String> names);
 }
 
 class Identifier extends Expression
@@ -51,10 +57,15 @@ class Identifier extends Expression
     return identifier;
   }
 
-  Chu eval(Calc calc) throws ExecutionException
+  Chu eval(Calc calc, Evaluation run) throws ExecutionException
   {
     return calc.lookupChu(identifier);
   }
+
+  void identifiers(Hashtable<String,String> names)
+  {
+    names.put(identifier, identifier);
+  }
 }
 
 class UnaryExpression extends Expression
@@ -73,14 +84,19 @@ class UnaryExpression extends Expression
     return unaryOp + " " + argExp.show();
   }
 
-  Chu eval(Calc calc) throws ExecutionException
+  void identifiers(Hashtable<String,String> names)
   {
-    UnaryOperator operator = calc.lookupUnaryOperator(unaryOp);
-    Chu arg = argExp.eval(calc);
+    argExp.identifiers(names);
+  }
+
+  Chu eval(Calc calc, Evaluation run) throws ExecutionException
+  {
+    calc.lookupUnaryOperator(unaryOp);  // report unknown operators first
+    Chu arg = argExp.eval(calc, run);
 
     if(arg==null) throw new ExecutionException(argExp.show()+" is undefined");
 
-    return operator.apply(arg, calc.getContext());
+    return run.apply(calc, this, unaryOp, arg, null);
   }
 }
 
@@ -103,21 +119,134 @@ class BinaryExpression extends Expression
                 rightExp.show() + ")";
   }
 
-  Chu eval(Calc calc) throws ExecutionException
+  void identifiers(Hashtable<String,String> names)
   {
-    BinaryOperator operator = calc.lookupBinaryOperator(binaryOp);
-    Chu left  = leftExp .eval(calc);
+    leftExp.identifiers(names);
+    rightExp.identifiers(names);
+  }
+
+  Chu eval(Calc calc, Evaluation run) throws ExecutionException
+  {
+    calc.lookupBinaryOperator(binaryOp);  // report unknown operators first
+    Chu left  = leftExp .eval(calc, run);
     if(left==null) throw new
       ExecutionException(leftExp.show()+" is undefined");
 
-    Chu right = rightExp.eval(calc);
+    Chu right = rightExp.eval(calc, run);
     if(right==null) throw new
       ExecutionException(rightExp.show()+" is undefined");
 
-    return operator.apply(left, right, calc.getContext());
+    return run.apply(calc, this, binaryOp, left, right);
   }
 }
 
+// An ExpressionParser parses one expression by recursive descent:
+//     expression := operand (binaryOp operand)*
+//     operand    := unaryOp operand | "(" expression ")" | identifier
+// A name like _|_ is both an operator and a constant: it is taken
+// as a unary operator only when an operand follows it.
+class ExpressionParser
+{
+  private String text;
+  private Hashtable<String,Expression> nodes;
+  private Vector<String> tokens;
+  private int next;
+
+  ExpressionParser(String text, Hashtable<String,Expression> nodes)
+  {
+    this.text = text;
+    this.nodes = nodes;
+    tokens = tokenize(text);
+    next = 0;
+  }
+
+  Expression parse() throws SyntaxException
+  {
+    if(tokens.size() == 0)
+      throw new SyntaxException("right hand side is empty");
+
+    Expression result = expression();
+    if(next < tokens.size())
+      throw error("unexpected \""+peek()+"\"");
+    return result;
+  }
+
+  private Expression expression() throws SyntaxException
+  {
+    Expression result = operand();
+    while(next < tokens.size() && !peek().equals(")")) {
+      String binaryOp = take();
+      if(!Calc.isBinaryOperator(binaryOp))
+        throw error("\""+binaryOp+"\" is not a binary operator");
+      result = share(new BinaryExpression(result, binaryOp, operand()));
+    }
+    return result;
+  }
+
+  private Expression operand() throws SyntaxException
+  {
+    if(next == tokens.size()) throw error("missing operand at end");
+
+    String token = take();
+    if(token.equals("(")) {
+      Expression result = expression();
+      if(next == tokens.size() || !take().equals(")"))
+        throw error("missing \")\"");
+      return result;
+    }
+    if(token.equals(")")) throw error("missing operand before \")\"");
+
+    if(Calc.isUnaryOperator(token) && operandFollows())
+      return share(new UnaryExpression(token, operand()));
+
+    return share(new Identifier(token));
+  }
 
+  // operandFollows: Does the next token start an operand?
+  private boolean operandFollows()
+  {
+    if(next == tokens.size()) return false;
+    String token = peek();
+    return !token.equals(")") && !Calc.isBinaryOperator(token);
+  }
 
+  // share: The node already built for this expression, if there is
+  // one; otherwise this one, which is remembered.
+  private Expression share(Expression e)
+  {
+    String key = e.show();
+    Expression old = nodes.get(key);
+    if(old != null) return old;
+    nodes.put(key, e);
+    return e;
+  }
 
+  private String peek() { return tokens.elementAt(next);}
+  private String take() { return tokens.elementAt(next++);}
+
+  private SyntaxException error(String message)
+  {
+    return new SyntaxException("right hand side \""+text+"\": "+message);
+  }
+
+  // tokenize: Splits text at whitespace, with each parenthesis
+  // a token of its own.
+  private static Vector<String> tokenize(String text)
+  {
+    Vector<String> result = new Vector<String>();
+    StringBuffer token = new StringBuffer();
+    for(int i=0;i<text.length();i++) {
+      char ch = text.charAt(i);
+      if(Character.isWhitespace(ch) || ch == '(' || ch == ')') {
+        if(token.length() > 0) {
+          result.addElement(token.toString());
+          token.setLength(0);
+        }
+        if(ch == '(' || ch == ')') result.addElement(String.valueOf(ch));
+      }
+      else token.append(ch);
+    }
+    if(token.length() > 0) result.addElement(token.toString());
+    return result;
+  }
+}
@@ -0,0 +1,138 @@
+// An ImplicationMatrix holds the rows of A -o B without building
+// them.  The rows are made one at a time, in order, by a
+// MatrixGenerator as they are read, and only the last one is
+// kept.  Anything else (going back to an earlier row, reading
+// columns or runs, or building a new matrix from this one) first
+// builds the whole matrix, once, with Chu.implication, and then
+// works from that.
+//   The rows come in the same order as from Chu.implication.
+class ImplicationMatrix extends Matrix
+{
+  private Chu A, B;
+  private int parallelism;
+  private boolean propagate;
+  private int nrows, ncols;
+
+  // The search, the number of the row it made last, the entries
+  // of that row, and how many more copies of it follow.
+  private MatrixGenerator MG;
+  private int current;
+  private int line[];
+  private long repeats;
+
+  // The whole matrix, once it has been needed
+  private Matrix built;
+
+  /* constructor */
+  ImplicationMatrix(Chu A, Chu B, int nrows,
+                    int parallelism, boolean propagate)
+  {
+    this.A = A;
+    this.B = B;
+    this.parallelism = parallelism;
+    this.propagate = propagate;
+    this.nrows = nrows;
+    this.ncols = A.nrows()*B.ncols();
+
+    current = -1;
+    line = new int[ncols];
+    repeats = 0;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return nrows;}
+  int ncols() { return ncols;}
+
+  synchronized int entry(int r, int c)
+  {
+    if(!seek(r)) return built.entry(r,c);
+    return line[c];
+  }
+
+  synchronized void getRow(int r, int line[])
+  {
+    if(!seek(r)) built.getRow(r, line);
+    else System.arraycopy(this.line, 0, line, 0, ncols);
+  }
+
+  void getCol(int c, int line[]) { built().getCol(c, line);}
+  int compareRows(int r1, int r2) { return built().compareRows(r1, r2);}
+
+  boolean bits() { return built().bits();}
+
+  Matrix distinct() { return built().distinct();}
+  int runs() { return built().runs();}
+  int runIndex(int k) { return built().runIndex(k);}
+  int runLength(int k) { return built().runLength(k);}
+
+  /* Builders */
+
+  Matrix rowMajor() { return built().rowMajor();}
+  Matrix copyTranspose() { return built().copyTranspose();}
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    return built().select(rowIndex, nrows, colIndex, ncols);
+  }
+
+  /* Generation */
+
+  // seek: Makes row r the current row, if it can be reached by
+  // going forward.  Returns false if the rows have been built
+  // instead, in which case they should be read from built.
+  private boolean seek(int r)
+  {
+    if(built != null) return false;
+    if(r < current) {
+      built();
+      return false;
+    }
+    while(current < r) advance();
+    return true;
+  }
+
+  // advance: Moves to the next row, searching for the next
+  // transform when the copies of the current one run out.
+  private void advance()
+  {
+    if(repeats > 0) {
+      repeats--;
+      current++;
+      return;
+    }
+
+    if(MG == null)
+      MG = propagate ? new PropagatingGenerator(B.rowTree(), A.colTree())
+                     : new MatrixGenerator(B.rowTree(), A.colTree());
+
+    while(MG.next()) {
+      long instances = 1;
+      for(int r=0;r<MG.nrows();r++) instances *= MG.rowCount(r);
+      for(int c=0;c<MG.ncols();c++) instances *= MG.colCount(c);
+      if(instances == 0) continue;
+
+      for(int r=0;r<MG.nrows();r++) {
+        int row_index = MG.rowIndex(r);
+        for(int c=0;c<MG.ncols();c++)
+          line[r*MG.ncols() + c] = B.entry(row_index, c);
+      }
+      repeats = instances-1;
+      current++;
+      return;
+    }
+    throw new IndexOutOfBoundsException("Row "+(current+1)+" of "+nrows);
+  }
+
+  // built: The whole matrix, built the first time it is needed.
+  // The search is dropped, since it will not be needed again.
+  private synchronized Matrix built()
+  {
+    if(built == null) {
+      built = Chu.implication(A, B, parallelism, propagate).matrix();
+      MG = null;
+      line = null;
+    }
+    return built;
+  }
+}
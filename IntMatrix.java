@@ -0,0 +1,85 @@
+// An IntMatrix stores its entries as ints, row after row,
+// in a single array.  Entry (r,c) is cells[r*ncols+c].
+// It can hold entries of any size.
+class IntMatrix extends Matrix
+{
+  private int nrows, ncols;
+  private int cells[];
+
+  /* constructor */
+  IntMatrix(int cells[], int nrows, int ncols)
+  {
+    this.nrows = nrows;
+    this.ncols = ncols;
+    this.cells = cells;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return nrows;}
+  int ncols() { return ncols;}
+  int entry(int r, int c) { return cells[r*ncols+c];}
+
+  void getRow(int r, int line[])
+  {
+    System.arraycopy(cells, r*ncols, line, 0, ncols);
+  }
+
+  void getCol(int c, int line[])
+  {
+    for(int r=0, i=c; r<nrows; r++, i+=ncols) line[r] = cells[i];
+  }
+
+  int compareRows(int r1, int r2)
+  {
+    for(int i=r1*ncols, j=r2*ncols, c=0; c<ncols; c++) {
+      int d = cells[i+c] - cells[j+c];
+      if(d != 0) return d;
+    }
+    return 0;
+  }
+
+  /* Builders */
+
+  // copyTranspose: Copies in square blocks, so that the rows
+  // being read and the rows being written both stay in cache.
+  Matrix copyTranspose()
+  {
+    int new_cells[] = new int[cells.length];
+
+    for(int r0=0;r0<nrows;r0+=BLOCK) for(int c0=0;c0<ncols;c0+=BLOCK) {
+      int r1 = Math.min(r0+BLOCK, nrows);
+      int c1 = Math.min(c0+BLOCK, ncols);
+      for(int r=r0;r<r1;r++) for(int c=c0;c<c1;c++)
+        new_cells[c*nrows+r] = cells[r*ncols+c];
+    }
+
+    return new IntMatrix(new_cells, ncols, nrows);
+  }
+
+  private static final int BLOCK = 64;
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    int new_cells[] = new int[cells(nrows, ncols)];
+
+    // Whole rows are copied at once when all columns are kept in order
+    if(ncols == this.ncols) {
+      boolean identity = true;
+      for(int c=0; c<ncols; c++) identity &= (colIndex[c] == c);
+      if(identity) {
+        for(int r=0; r<nrows; r++)
+          System.arraycopy(cells, rowIndex[r]*ncols, new_cells, r*ncols, ncols);
+        return new IntMatrix(new_cells, nrows, ncols);
+      }
+    }
+
+    for(int r=0, i=0; r<nrows; r++) {
+      int base = rowIndex[r]*this.ncols;
+      for(int c=0; c<ncols; c++)
+        new_cells[i++] = cells[base+colIndex[c]];
+    }
+
+    return new IntMatrix(new_cells, nrows, ncols);
+  }
+}
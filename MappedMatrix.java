@@ -0,0 +1,234 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A MappedMatrix keeps its entries in a file laid out as by
+// ChuFormat, mapped into memory, instead of on the heap.  The
+// operating system pages the entries in as they are read, so a
+// matrix can be larger than the heap (or than memory), and the
+// file is a saved copy of the space as it stands.
+//   A single mapping can't exceed 2GB, so the body is mapped in
+// chunks of whole rows, each of at most CHUNK bytes (or one row,
+// if a row is longer).
+//   Rows are read in place, so a mapped space can be printed
+// (Chu.unparse to a Writer), saved, or used as the B of a lazy
+// implication without reaching the heap.  Anything more copies
+// it: copies, transposes and selections are built on the heap, as
+// for any other matrix, and when K<=2 the rows are BitMatrix rows
+// and bits() is true, so operators take the same packed paths as
+// for a BitMatrix, and those start by copying the whole space to
+// the heap with rowMajor().  Standardizing sorts the rows that
+// way, and the columns through a transpose.  So a mapped space
+// must fit on the heap to be an operand of most operators, or to
+// be standardized (as Unique mode does to every result); it need
+// not fit to be made, printed or saved.
+class MappedMatrix extends Matrix
+{
+  static final long CHUNK = 1L << 30;
+
+  private ChuFormat.Header header;
+  private MappedByteBuffer chunks[];
+  private int rowsPerChunk;
+  private long mask;   // of one entry
+
+  /* constructor */
+  private MappedMatrix(ChuFormat.Header header, FileChannel channel,
+                       FileChannel.MapMode mode) throws IOException
+  {
+    this.header = header;
+    mask = (1L << header.width) - 1;
+
+    long rowBytes = header.rowBytes();
+    if(rowBytes > Integer.MAX_VALUE)
+      throw new IOException("Rows of "+rowBytes+" bytes are too long to map");
+    rowsPerChunk = (rowBytes == 0) ? Math.max(header.nrows, 1)
+                                   : (int)Math.max(1, CHUNK/rowBytes);
+
+    int n = (header.nrows + rowsPerChunk - 1)/rowsPerChunk;
+    chunks = new MappedByteBuffer[n];
+    for(int i=0;i<n;i++) {
+      long first = (long)i*rowsPerChunk;
+      long rows = Math.min(rowsPerChunk, header.nrows - first);
+      chunks[i] = channel.map(mode, ChuFormat.HEADER + first*rowBytes,
+                              rows*rowBytes);
+      chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  /* Opening and creating files */
+
+  // open: The space saved in file (by ChuFormat or by store),
+  // mapped for reading.
+  static Chu open(File file) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(ChuFormat.HEADER);
+      while(buffer.hasRemaining())
+        if(channel.read(buffer) < 0)
+          throw new IOException(file+" ends early");
+      buffer.flip();
+      ChuFormat.Header header = new ChuFormat.Header(buffer);
+      if(channel.size() < ChuFormat.HEADER + header.bodyBytes())
+        throw new IOException(file+" ends early");
+
+      MappedMatrix matrix = new MappedMatrix(header, channel,
+                                             FileChannel.MapMode.READ_ONLY);
+      return new Chu(header.K, matrix, false);   // see ChuFormat
+    }
+    finally {
+      raf.close();   // the mappings stay valid
+    }
+  }
+
+  // store: Writes the rows of chu into file, one at a time, and
+  // returns the same space read from there.  Only one row is on
+  // the heap at a time, so chu can be a view (such as a product)
+  // or a lazy implication much larger than the heap.
+  static Chu store(Chu chu, File file) throws IOException
+  {
+    ChuFormat.Header header = new ChuFormat.Header(chu.K(), chu.nrows(),
+                                                   chu.ncols(),
+                                                   chu.standardized());
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    MappedMatrix matrix;
+    try {
+      FileChannel channel = raf.getChannel();
+      raf.setLength(ChuFormat.HEADER + header.bodyBytes());
+
+      ByteBuffer buffer = ByteBuffer.allocate(ChuFormat.HEADER);
+      header.put(buffer);
+      buffer.flip();
+      channel.position(0);
+      while(buffer.hasRemaining()) channel.write(buffer);
+
+      matrix = new MappedMatrix(header, channel,
+                                FileChannel.MapMode.READ_WRITE);
+    }
+    finally {
+      raf.close();
+    }
+
+    // Rows are read in order, which is what a lazy matrix wants
+    Matrix source = chu.matrix();
+    int line[] = new int[header.ncols];
+    long row[] = new long[header.words];
+    for(int r=0;r<header.nrows;r++) {
+      Budget.checkpoint();
+      source.getRow(r, line);
+      ChuFormat.pack(line, header, row);
+      matrix.setRow(r, row);
+    }
+    matrix.force();
+
+    return new Chu(header.K, matrix, chu.standardized());
+  }
+
+  /* Inspectors */
+
+  int nrows() { return header.nrows;}
+  int ncols() { return header.ncols;}
+
+  int entry(int r, int c)
+  {
+    long bit = (long)c*header.width;
+    long word = chunk(r).getLong(offset(r) + (int)(bit >>> 6)*8);
+    return (int)((word >>> (bit & 63)) & mask);
+  }
+
+  boolean bits() { return header.width == 1 && header.K <= 2;}
+
+  void getRow(int r, int line[])
+  {
+    MappedByteBuffer chunk = chunk(r);
+    int offset = offset(r);
+    int width = header.width, perWord = 64/width;
+    for(int w=0, c=0; w<header.words; w++) {
+      long word = chunk.getLong(offset + w*8);
+      for(int i=0; i<perWord && c<header.ncols; i++, c++) {
+        line[c] = (int)(word & mask);
+        word >>>= width;
+      }
+    }
+  }
+
+  /* Builders */
+
+  // rowMajor: For K<=2, the rows as a BitMatrix on the heap
+  Matrix rowMajor()
+  {
+    if(!bits()) return this;
+
+    long rows[][] = new long[header.nrows][header.words];
+    for(int r=0;r<header.nrows;r++) {
+      MappedByteBuffer chunk = chunk(r);
+      int offset = offset(r);
+      for(int w=0;w<header.words;w++)
+        rows[r][w] = chunk.getLong(offset + w*8);
+    }
+    return new BitMatrix(rows, header.ncols);
+  }
+
+  Matrix copyTranspose()
+  {
+    int nrows = header.nrows, ncols = header.ncols;
+    int cells[] = new int[cells(nrows, ncols)];
+    int line[] = new int[ncols];
+    for(int r=0;r<nrows;r++) {
+      getRow(r, line);
+      for(int c=0;c<ncols;c++) cells[c*nrows + r] = line[c];
+    }
+    return Matrix.build(header.K, cells, ncols, nrows);
+  }
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    int cells[] = new int[cells(nrows, ncols)];
+    int line[] = new int[header.ncols];
+    for(int r=0;r<nrows;r++) {
+      getRow(rowIndex[r], line);
+      for(int c=0;c<ncols;c++) cells[r*ncols + c] = line[colIndex[c]];
+    }
+    return Matrix.build(header.K, cells, nrows, ncols);
+  }
+
+  /* Storage */
+
+  // setRow: Replaces row r with the given words, packed as in a
+  // file.  Only for matrices made by store.
+  private void setRow(int r, long row[])
+  {
+    MappedByteBuffer chunk = chunk(r);
+    int offset = offset(r);
+    for(int w=0;w<row.length;w++) chunk.putLong(offset + w*8, row[w]);
+  }
+
+  // force: Makes sure changes have reached the file
+  private void force()
+  {
+    for(int i=0;i<chunks.length;i++) chunks[i].force();
+  }
+
+  // writeBody: Writes the rows, exactly as they are mapped
+  void writeBody(WritableByteChannel channel) throws IOException
+  {
+    for(int i=0;i<chunks.length;i++) {
+      ByteBuffer chunk = chunks[i].duplicate();
+      chunk.clear();
+      while(chunk.hasRemaining()) channel.write(chunk);
+    }
+  }
+
+  private MappedByteBuffer chunk(int r) { return chunks[r/rowsPerChunk];}
+
+  private int offset(int r)
+  {
+    return (int)((r % rowsPerChunk)*header.rowBytes());
+  }
+}
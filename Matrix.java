@@ -0,0 +1,114 @@
+// A Matrix holds the entries of a Chu space.
+// Entries are numbers in [0,K-1]; how they are stored
+// is up to the subclass.  Matrices are never changed
+// once they have been built.
+abstract class Matrix
+{
+  /* Inspectors */
+
+  abstract int nrows();
+  abstract int ncols();
+  abstract int entry(int r, int c);
+
+  // bits: Are the entries stored as bits (so K is at most 2)?
+  boolean bits() { return false;}
+
+  // getRow: Copies row r into line[0..ncols-1]
+  void getRow(int r, int line[])
+  {
+    for(int c=0;c<ncols();c++) line[c] = entry(r,c);
+  }
+
+  // getCol: Copies column c into line[0..nrows-1]
+  void getCol(int c, int line[])
+  {
+    for(int r=0;r<nrows();r++) line[r] = entry(r,c);
+  }
+
+  // compareRows: Compares two rows lexicographically.
+  // Returns a negative number, zero, or a positive number
+  // as row r1 is less than, equal to, or greater than row r2.
+  int compareRows(int r1, int r2)
+  {
+    for(int c=0;c<ncols();c++) {
+      int d = entry(r1,c) - entry(r2,c);
+      if(d != 0) return d;
+    }
+    return 0;
+  }
+
+  // Row multiplicity: Every matrix is a sequence of runs of
+  // identical rows, each run repeating some row of distinct(),
+  // and each row of distinct() repeated by at least one run.
+  // By default each row is its own run.
+  Matrix distinct() { return this;}
+  int runs() { return nrows();}
+  int runIndex(int k) { return k;}
+  int runLength(int k) { return 1;}
+
+  /* Builders */
+
+  // transpose: Returns the matrix with rows and columns exchanged.
+  // This is a view sharing storage with this matrix.
+  Matrix transpose()
+  {
+    return new TransposedMatrix(this);
+  }
+
+  // rowMajor: Returns this matrix with its rows laid out as rows,
+  // which is this matrix itself unless it is a transposed view.
+  // If bits() is true the result is always a BitMatrix, so that
+  // packed code can read its rows a word at a time.
+  Matrix rowMajor() { return this;}
+
+  // copyTranspose: Returns the transpose with its rows laid
+  // out as rows, by copying.
+  abstract Matrix copyTranspose();
+
+  // select: Returns the submatrix made of the given rows and
+  // columns, in the given order.
+  abstract Matrix select(int rowIndex[], int nrows,
+                         int colIndex[], int ncols);
+
+  // cells: The number of entries in an nrows x ncols matrix, for
+  // sizing an array that holds them all.  No array can hold more
+  // than MAX_CELLS, so a larger matrix is refused with a TooLarge
+  // rather than being given an array of the wrong size.
+  static final int MAX_CELLS = Integer.MAX_VALUE - 8;
+
+  static int cells(long nrows, long ncols)
+  {
+    long cells = nrows*ncols;
+    if(cells > MAX_CELLS)
+      throw new TooLarge(nrows+"x"+ncols+" is too many entries to store");
+    return (int)cells;
+  }
+
+  // TooLarge is unchecked, like Budget.Exceeded, so that it can be
+  // thrown wherever a matrix is built; Calc turns it into an
+  // ExecutionException.
+  static class TooLarge extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+
+    TooLarge(String message) { super(message);}
+  }
+
+  // build: Packages nrows*ncols entries drawn from [0,K-1],
+  // given row after row, in the most compact form for K.
+  static Matrix build(int K, int cells[], int nrows, int ncols)
+  {
+    if(K <= 2) return BitMatrix.pack(cells, nrows, ncols);
+    else if(K <= 256) return ByteMatrix.pack(cells, nrows, ncols);
+    else return new IntMatrix(cells, nrows, ncols);
+  }
+
+  // build: Packages the given rows, all of length ncols.
+  static Matrix build(int K, int rows[][], int ncols)
+  {
+    int cells[] = new int[cells(rows.length, ncols)];
+    for(int r=0;r<rows.length;r++)
+      System.arraycopy(rows[r], 0, cells, r*ncols, ncols);
+    return build(K, cells, rows.length, ncols);
+  }
+}
@@ -1,3 +1,6 @@
+import java.math.BigInteger;
+import java.util.Vector;
+
 /* Generates all matrixes whose rows and columns are taken
  * from the prefix trees passed at construction time.
  *
@@ -6,18 +9,18 @@
  */
 class MatrixGenerator
 {
-  private Tree rowTree; // prefix tree of rows
-  private Tree colTree; // prefix tree of columns
+  private Tree rowTrees[]; // prefix tree of each row
+  private Tree colTrees[]; // prefix tree of each column
 
   private int nrows,ncols; // Shape of matrix
   private int K; // Entries of matrix are in 0...K-1
 
   // The search algorithm works by trial extension of a region
   // of overlapping partial rows and columns.  The two arrays
-  // below represent that region by locating the Node for
-  // each partial row and column.
-  private Node rowNodes[];
-  private Node colNodes[];
+  // below represent that region by locating the node (in its
+  // tree) for each partial row and column.
+  private int rowNodes[];
+  private int colNodes[];
 
   // more search variables:  current(Row/Col/Branch)
   // these variables give the cell we are trying to fill,
@@ -27,55 +30,141 @@ class MatrixGenerator
   // if done is true then there are no more matricies
   private boolean done;
 
-  // These arrays represent a matrix.  (The arrays point
-  // to lists of indexes of lines that form the matrix.)
-  // After a successful call to next(), the caller
-  // can examine these arrays to extract the matrix.
-  Link rowLinks[];
-  Link colLinks[];
+  // depth counts the cells filled so far, and cells[] holds
+  // their values in herringbone order.  The search never backs
+  // up past the first floor cells (a fixed prefix), and treats
+  // limit filled cells as a finished matrix (to list prefixes).
+  private int depth, floor, limit;
+  private int cells[];
+
+  // These arrays represent a matrix.  (The arrays locate
+  // the nodes holding lists of indexes of lines that form
+  // the matrix.)  After a successful call to next(), the
+  // caller can examine them with rowIndex() and the like.
+  private int rowLeaves[];
+  private int colLeaves[];
+
+  // The Budget of the calculation this search is part of (taken
+  // from the thread that builds the generator), and the steps
+  // taken since it was last checked.
+  private Budget budget;
+  private int steps;
 
   /* Constructor */
 
   MatrixGenerator(Tree rowTree,Tree colTree)
   {
-    ncols = rowTree.length();
+    this(copies(rowTree, colTree.length()),
+         copies(colTree, rowTree.length()),
+         rowTree.arity());
+  }
+
+  // Mixed constructor: row r of each matrix is taken from
+  // rowTrees[r] and column c from colTrees[c].  All the trees
+  // must have arity K.
+  MatrixGenerator(Tree rowTrees[], Tree colTrees[], int K)
+  {
+    ncols = colTrees.length;
     currentCol=0;
 
-    nrows = colTree.length();
+    nrows = rowTrees.length;
     currentRow=0;
 
-    K = rowTree.arity();
+    this.K = K;
     currentBranch=0;
 
     done = false;
 
+    depth = 0;
+    floor = 0;
+    limit = nrows*ncols;
+    cells = new int[limit];
+
+    this.rowTrees = rowTrees;
+    this.colTrees = colTrees;
+
+    budget = Budget.current();
+
     // initialize row search arrays
-    rowNodes = new Node[nrows];
-    rowLinks = new Link[nrows];
+    rowNodes = new int[nrows];
+    rowLeaves = new int[nrows];
     for(int r=0;r<nrows;r++) {
-      rowNodes[r] = rowTree.top();
-      rowLinks[r] = null;
+      rowNodes[r] = rowTrees[r].top();
+      rowLeaves[r] = Tree.NONE;
     }
 
     // initialize column search arrays
-    colNodes = new Node[ncols];
-    colLinks = new Link[ncols];
+    colNodes = new int[ncols];
+    colLeaves = new int[ncols];
     for(int c=0;c<ncols;c++) {
-      colNodes[c] = colTree.top();
-      colLinks[c] = null;
+      colNodes[c] = colTrees[c].top();
+      colLeaves[c] = Tree.NONE;
     }
   }
 
+  private static Tree[] copies(Tree tree, int n)
+  {
+    Tree result[] = new Tree[n];
+    for(int i=0;i<n;i++) result[i] = tree;
+    return result;
+  }
+
+  // Prefix constructor: Generates only the matrices that begin
+  // with the given cell values, in herringbone order.  If the
+  // prefix is impossible, no matrices are generated.
+  MatrixGenerator(Tree rowTree, Tree colTree, int prefix[])
+  {
+    this(rowTree, colTree);
+
+    for(int i=0; i<prefix.length && !done; i++) {
+      currentBranch = prefix[i];
+      if(!forward()) done = true;
+    }
+    floor = depth;
+  }
+
   /* Inspectors */
 
   int nrows() { return nrows;}
   int ncols() { return ncols;}
   int K() { return K;}
 
+  // rowIndex, colIndex: After a successful call to next(), the
+  // index of a line (the one added last) that can be row r or
+  // column c of the matrix.  rowCount and colCount give the
+  // number of such lines, and rowIndexes and colIndexes list
+  // them all.  A row or column no line fits (as in an empty
+  // space) has a count of 0, and such a matrix stands for no
+  // morphisms at all.
+  int rowIndex(int r) { return rowTrees[r].first(rowLeaves[r]);}
+  int colIndex(int c) { return colTrees[c].first(colLeaves[c]);}
+  int rowCount(int r) { return rowTrees[r].count(rowLeaves[r]);}
+  int colCount(int c) { return colTrees[c].count(colLeaves[c]);}
+
+  int[] rowIndexes(int r) { return indexes(rowTrees[r], rowLeaves[r]);}
+  int[] colIndexes(int c) { return indexes(colTrees[c], colLeaves[c]);}
+
+  private static int[] indexes(Tree tree, int leaf)
+  {
+    int result[] = new int[tree.count(leaf)];
+    int i=0;
+    for(int l=tree.data(leaf); l!=Tree.NONE; l=tree.next(l))
+      result[i++] = tree.datum(l);
+    return result;
+  }
+
+  // getCells: After a successful call to next(), copies the
+  // entries of the matrix, in herringbone order, into line.
+  // Matrices are generated in lexicographic order of these lines.
+  void getCells(int line[])
+  {
+    System.arraycopy(cells, 0, line, 0, nrows*ncols);
+  }
+
   // next: Try to find the next morphism
   // If there is no such morphism, return false
-  // If there is such a morphism, put lists of the
-  // possible rows and columns into rowLinks, colLinks,
+  // If there is such a morphism, locate the lists of the
+  // possible rows and columns in rowLeaves, colLeaves,
   // then return true.
   boolean next()
   {
@@ -93,10 +182,11 @@ class MatrixGenerator
     //     8 14 18 20
 
     if (done) return false;
+    checkpoint();
 
     // Outer loop: drive search forward, extending matrix,
     // check for when we go out of bounds.
-    outer: while(currentRow<nrows && currentCol<ncols)
+    outer: while(currentRow<nrows && currentCol<ncols && depth<limit)
     {
       // Inner loop: go forward one step.
       // Back up as many cells as needed before taking a forward step.
@@ -112,6 +202,7 @@ class MatrixGenerator
 
         // If we succeed in going forward, then we re-test bounds.
         // Otherwise we try another value for currentBranch
+        checkpoint();
         success = forward();
         if(success) continue outer;
         else currentBranch++;
@@ -120,10 +211,8 @@ class MatrixGenerator
 
     // If we get here, the search went out of bounds.
     // Thus we have a matrix to record.
-    for(int r=0;r<nrows;r++)
-      rowLinks[r] = rowNodes[r].data();
-    for(int c=0;c<ncols;c++)
-      colLinks[c] = colNodes[c].data();
+    System.arraycopy(rowNodes, 0, rowLeaves, 0, nrows);
+    System.arraycopy(colNodes, 0, colLeaves, 0, ncols);
 
     // move search one step beyond this morphism
     // then return true to indicate we have a morphism
@@ -131,13 +220,25 @@ class MatrixGenerator
     return true;
   }
 
+  // checkpoint: Counts a step of the search, and now and then
+  // checks the budget, which throws a Budget.Exceeded if the
+  // calculation has been canceled or has run out of time.
+  final void checkpoint()
+  {
+    if(budget != null && ++steps == 4096) {
+      budget.check(steps);
+      steps = 0;
+    }
+  }
+
   private boolean backward()
   {
-    // Can't back up from 0,0
-    if(currentRow==0 && currentCol==0) {
+    // Can't back up from 0,0 or past a fixed prefix
+    if(depth == floor) {
       done = true;
       return false;
     }
+    depth--;
 
     // First step currentRow, currentCol backward
     if(currentRow <= currentCol) {
@@ -158,10 +259,11 @@ class MatrixGenerator
     }
 
     // Second, restore currentBranch and the prefix trees
-    currentBranch = rowNodes[currentRow].branch();
+    Tree rt = rowTrees[currentRow];
+    currentBranch = rt.branch(rowNodes[currentRow]);
     currentBranch++;
-    rowNodes[currentRow] = rowNodes[currentRow].parent();
-    colNodes[currentCol] = colNodes[currentCol].parent();
+    rowNodes[currentRow] = rt.parent(rowNodes[currentRow]);
+    colNodes[currentCol] = colTrees[currentCol].parent(colNodes[currentCol]);
 
     return true;  // Report Success
   }
@@ -169,15 +271,17 @@ class MatrixGenerator
   private boolean forward()
   {
     // Try the current value of branch in the current cell
-    Node rn = rowNodes[currentRow].child(currentBranch);
-    Node cn = colNodes[currentCol].child(currentBranch);
+    int rn = rowTrees[currentRow].child(rowNodes[currentRow], currentBranch);
+    if (rn == Tree.NONE) return false;
+    int cn = colTrees[currentCol].child(colNodes[currentCol], currentBranch);
 
     // If it doesn't work, then report failure
-    if (rn == null || cn == null) return false;
+    if (cn == Tree.NONE) return false;
 
     // First update currentBranch and the prefix trees
     rowNodes[currentRow] = rn;
     colNodes[currentCol] = cn;
+    cells[depth++] = currentBranch;
     currentBranch = 0;
 
     // Second, step currentRow, currentCol forward
@@ -205,6 +309,74 @@ class MatrixGenerator
     return true; // Report Success
   }
 
+  // count: Runs the search to the end, and returns the number
+  // of morphisms found.  Each matrix counts once for every way
+  // of choosing its rows and columns from the lists of lines
+  // that fit them.  Nothing is allocated per matrix.
+  BigInteger count()
+  {
+    BigInteger total = BigInteger.ZERO;
+    long subtotal = 0;   // Not yet added to total
+
+    while(next()) {
+      long instances = 1;
+      try {
+        for(int r=0;r<nrows;r++)
+          instances = Math.multiplyExact(instances, rowCount(r));
+        for(int c=0;c<ncols;c++)
+          instances = Math.multiplyExact(instances, colCount(c));
+        subtotal = Math.addExact(subtotal, instances);
+      }
+      catch(ArithmeticException x) {
+        // Too big for a long: finish this matrix with BigIntegers
+        BigInteger big = BigInteger.ONE;
+        for(int r=0;r<nrows;r++)
+          big = big.multiply(BigInteger.valueOf(rowCount(r)));
+        for(int c=0;c<ncols;c++)
+          big = big.multiply(BigInteger.valueOf(colCount(c)));
+        total = total.add(big);
+      }
+    }
+    return total.add(BigInteger.valueOf(subtotal));
+  }
+
+  // prefixes: Lists every possible prefix of the given length
+  // (shorter if the matrix has fewer cells), in the order that
+  // next() would reach them.  Each prefix is an int[] suitable
+  // for the prefix constructor, so the search can be split into
+  // independent pieces.
+  Vector<int[]> prefixes(int length)
+  {
+    Vector<int[]> result = new Vector<int[]>();
+    if(length > nrows*ncols) length = nrows*ncols;
+    if(length == 0) {
+      result.addElement(new int[0]);
+      return result;
+    }
+    limit = length;
+
+    while(next()) {
+      int prefix[] = new int[length];
+      System.arraycopy(cells, 0, prefix, 0, length);
+      result.addElement(prefix);
+    }
+    return result;
+  }
+
+  // split: Lists prefixes that divide the search into at least
+  // the given number of pieces, if the matrix has enough cells.
+  static Vector<int[]> split(Tree rowTree, Tree colTree, int pieces)
+  {
+    int cells = rowTree.length()*colTree.length();
+    int length = 0;
+    Vector<int[]> result;
+    do {
+      length++;
+      result = (new MatrixGenerator(rowTree, colTree)).prefixes(length);
+    } while(result.size() < pieces && length < cells);
+    return result;
+  }
+
   public static void main(String args[]) throws Chu.ParseException
   {
     Chu source,target;
@@ -228,12 +400,16 @@ class MatrixGenerator
       i++;
       System.out.println("Morphism "+Integer.toString(i));
       System.out.println("Row Map");
-      for(int r=0;r<G.rowLinks.length;r++) {
-        G.rowLinks[r].show("From " + Integer.toString(r)+" To ");
+      for(int r=0;r<G.nrows();r++) {
+        int to[] = G.rowIndexes(r);
+        for(int k=0;k<to.length;k++)
+          System.out.println("From " + Integer.toString(r)+" To " + to[k]);
       }
       System.out.println("Column Map");
-      for(int c=0;c<G.colLinks.length;c++) {
-        G.colLinks[c].show("From " + Integer.toString(c)+" To ");
+      for(int c=0;c<G.ncols();c++) {
+        int to[] = G.colIndexes(c);
+        for(int k=0;k<to.length;k++)
+          System.out.println("From " + Integer.toString(c)+" To " + to[k]);
       }
       System.out.println("");
     }
@@ -0,0 +1,94 @@
+// A ProductMatrix is the matrix of Chu.product(A,B) without the
+// copying: row ar*B.nrows()+br is row ar of A followed by row br
+// of B.  Entries, rows and columns are read from A and B.
+//   Packed rows, copies and selections need the rows laid out,
+// so the first of those builds the whole matrix, once.  That
+// includes standardizing (see Chu.conform): it sorts bit matrices
+// by their packed rows and columns, and selects the lines it keeps
+// when some repeat.  So with standardization on, which conforms
+// every result, a view of bits (K <= 2) is built as soon as it is
+// made; a view is only spared the copy when K > 2 and no line
+// repeats, when standardization is off, or when Chu uses it
+// without conforming it (as plus does).
+class ProductMatrix extends Matrix
+{
+  private Matrix A, B;
+  private int K;
+  private Matrix built;
+
+  /* constructor */
+  ProductMatrix(Matrix A, Matrix B, int K)
+  {
+    this.A = A;
+    this.B = B;
+    this.K = K;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return A.nrows()*B.nrows();}
+  int ncols() { return A.ncols()+B.ncols();}
+
+  int entry(int r, int c)
+  {
+    int nB = B.nrows();
+    if(c < A.ncols()) return A.entry(r/nB, c);
+    else return B.entry(r%nB, c-A.ncols());
+  }
+
+  boolean bits() { return A.bits() && B.bits();}
+
+  void getRow(int r, int line[])
+  {
+    int nB = B.nrows(), mA = A.ncols();
+    A.getRow(r/nB, line);
+    for(int c=0;c<B.ncols();c++) line[mA+c] = B.entry(r%nB, c);
+  }
+
+  void getCol(int c, int line[])
+  {
+    int nA = A.nrows(), nB = B.nrows();
+    if(c < A.ncols()) {
+      int col[] = new int[nA];
+      A.getCol(c, col);
+      for(int ar=0, r=0; ar<nA; ar++)
+        for(int br=0; br<nB; br++) line[r++] = col[ar];
+    }
+    else {
+      int col[] = new int[nB];
+      B.getCol(c-A.ncols(), col);
+      for(int ar=0; ar<nA; ar++)
+        System.arraycopy(col, 0, line, ar*nB, nB);
+    }
+  }
+
+  /* Builders */
+
+  Matrix rowMajor() { return built();}
+  Matrix copyTranspose() { return built().copyTranspose();}
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    return built().select(rowIndex, nrows, colIndex, ncols);
+  }
+
+  // built: The rows laid out, built the first time they are needed
+  private synchronized Matrix built()
+  {
+    if(built != null) return built;
+
+    if(bits())
+      built = BitMatrix.concat((BitMatrix)A.rowMajor(), (BitMatrix)B.rowMajor());
+    else {
+      int nrows = nrows(), ncols = ncols();
+      int cells[] = new int[cells(nrows, ncols)];
+      int line[] = new int[ncols];
+      for(int r=0;r<nrows;r++) {
+        getRow(r, line);
+        System.arraycopy(line, 0, cells, r*ncols, ncols);
+      }
+      built = Matrix.build(K, cells, nrows, ncols);
+    }
+    return built;
+  }
+}
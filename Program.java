@@ -1,46 +1,218 @@
+import java.util.Hashtable;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class Program implements Executable {
-  Vector statements;
+  Vector<Statement> statements;
 
   Program(String programText) throws SyntaxException
   {
-    statements = new Vector();
+    statements = new Vector<Statement>();
+
+    // The expressions of all the statements share their nodes, so
+    // a subexpression repeated anywhere in the program is one node.
+    Hashtable<String,Expression> nodes = new Hashtable<String,Expression>();
 
     StringTokenizer tokenizer = new StringTokenizer(programText, ",\n");
     while(tokenizer.hasMoreTokens())
     {
       String statementText = tokenizer.nextToken().trim();
       if(statementText.length() != 0)
-        statements.addElement(Statement.parse(statementText));
+        statements.addElement(Statement.parse(statementText, nodes));
     }
   }
 
   void show()
   {
     System.out.println("Program:");
-    Enumeration e = statements.elements();
+    Enumeration<Statement> e = statements.elements();
     while(e.hasMoreElements()) {
-      Statement s = (Statement)e.nextElement();
+      Statement s = e.nextElement();
       System.out.println(s.show());
     }
   }
 
+  // exec: Runs the statements with the effect of running them one
+  // after another.  When the Context allows more than one thread,
+  // the assignments between two barriers (see Statement.barrier)
+  // are run together: each waits only for the earlier assignments
+  // to the variables it reads.  Their bindings are still made in
+  // program order, so a later assignment never changes a variable
+  // before an earlier statement has read it, and if a statement
+  // fails, the ones before it have taken effect and the ones after
+  // it have not.
+  //   A node shared by several statements is evaluated once in
+  // a run, unless a variable it reads is rebound in between (see
+  // Evaluation).
   public void exec(Calc c) throws ExecutionException
   {
-    Enumeration e = statements.elements();
-    while(e.hasMoreElements()) {
-      Statement s = (Statement)e.nextElement();
-      s.exec(c);
+    Evaluation run = new Evaluation();
+    int start = 0;
+    for(int i=0;i<statements.size();i++) {
+      Statement s = statements.elementAt(i);
+      if(s.barrier()) {
+        execAssignments(c, run, start, i);
+        s.exec(c);
+        start = i+1;
+      }
     }
+    execAssignments(c, run, start, statements.size());
   }
-}
 
+  // execAssignments: Runs statements from..to-1, none of which
+  // are barriers, as part of run.
+  private void execAssignments(final Calc c, final Evaluation run,
+                               int from, int to)
+    throws ExecutionException
+  {
+    int parallelism = c.getContext().parallelism;
+    int n = to-from;
+    if(parallelism <= 1 || n <= 1) {
+      for(int i=from;i<to;i++)
+        ((AssignStatement)statements.elementAt(i)).exec(c, run);
+      return;
+    }
+
+    // deps[i] lists the statements i must wait for: for each
+    // variable it reads, the last statement before it that binds
+    // that variable.
+    final AssignStatement assignments[] = new AssignStatement[n];
+    final int deps[][] = new int[n][];
+    Hashtable<String,Integer> lastWriter = new Hashtable<String,Integer>();
+    for(int i=0;i<n;i++) {
+      assignments[i] = (AssignStatement)statements.elementAt(from+i);
 
+      Vector<Integer> d = new Vector<Integer>();
+      for(Enumeration<String> e=assignments[i].reads().keys();
+          e.hasMoreElements(); ) {
+        Integer writer = lastWriter.get(e.nextElement());
+        if(writer != null) d.addElement(writer);
+      }
+      deps[i] = new int[d.size()];
+      for(int k=0;k<d.size();k++) deps[i][k] = d.elementAt(k).intValue();
 
+      lastWriter.put(assignments[i].writes(), Integer.valueOf(i));
+    }
 
+    // committed[i] opens once statement i's binding is made, or once
+    // the run is abandoned (then aborted is set first).
+    final CountDownLatch committed[] = new CountDownLatch[n];
+    for(int i=0;i<n;i++) committed[i] = new CountDownLatch(1);
+    final boolean aborted[] = new boolean[1];
 
+    // The tasks run within a part of the budget of this thread,
+    // so that a failure can stop the tasks still running without
+    // canceling the rest of the calculation.
+    final Budget budget = new Budget(Budget.current());
 
+    // The tasks are queued in program order and the pool takes them
+    // in that order, so a task only ever waits for tasks that have
+    // already started: the waits can't deadlock.
+    ExecutorService pool = pool(parallelism);
+    Vector<Future<Chu>> results = new Vector<Future<Chu>>(n);
+    for(int i=0;i<n;i++) {
+      final int index = i;
+      results.addElement(pool.submit(new Callable<Chu>() {
+        public Chu call() throws Exception
+        {
+          for(int k=0;k<deps[index].length;k++) {
+            committed[deps[index][k]].await();
+            synchronized(aborted) {
+              if(aborted[0]) return null;
+            }
+          }
 
+          Budget previous = Budget.enter(budget);
+          try {
+            return assignments[index].rhs.eval(c, run);
+          }
+          finally {
+            Budget.exit(previous);
+          }
+        }
+      }));
+    }
+
+    // Make the bindings in order, stopping at the first failure
+    try {
+      for(int i=0;i<n;i++) {
+        Chu value = results.elementAt(i).get();
+        c.bindVariable(assignments[i].writes(), value);
+        committed[i].countDown();
+      }
+    }
+    catch(java.util.concurrent.ExecutionException x) {
+      abort(committed, aborted, budget, results);
+      Throwable cause = x.getCause();
+      if(cause instanceof ExecutionException) throw (ExecutionException)cause;
+      if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if(cause instanceof Error) throw (Error)cause;
+      throw new ExecutionException(cause.toString());
+    }
+    catch(InterruptedException x) {
+      abort(committed, aborted, budget, results);
+      throw new ExecutionException("Interrupted");
+    }
+    catch(ExecutionException x) {
+      abort(committed, aborted, budget, results);
+      throw x;
+    }
+  }
+
+  // abort: Abandons a run: tasks still waiting give up, tasks
+  // not yet started never start, and tasks still running stop at
+  // their next check of the budget.
+  private static void abort(CountDownLatch committed[], boolean aborted[],
+                            Budget budget, Vector<Future<Chu>> results)
+  {
+    synchronized(aborted) {
+      aborted[0] = true;
+    }
+    budget.cancel();
+    for(int i=0;i<committed.length;i++) {
+      committed[i].countDown();
+      results.elementAt(i).cancel(false);
+    }
+  }
+
+  // pool: The threads that run statements.  Like the pools for
+  // searches in Chu, there is one for each degree of parallelism
+  // asked for, and none is ever shut down, since another run may
+  // still be using it.  Idle threads die after a while, and all
+  // are daemons, so they don't keep the program running once it
+  // is otherwise done.
+  private static Hashtable<Integer,ExecutorService> pools =
+    new Hashtable<Integer,ExecutorService>();
+
+  private static synchronized ExecutorService pool(int parallelism)
+  {
+    ExecutorService pool = pools.get(Integer.valueOf(parallelism));
+    if(pool == null) {
+      ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(parallelism, parallelism,
+                               60, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               new ThreadFactory() {
+          public Thread newThread(Runnable r)
+          {
+            Thread t = new Thread(r, "Program statement");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      executor.allowCoreThreadTimeOut(true);
+      pool = executor;
+      pools.put(Integer.valueOf(parallelism), pool);
+    }
+    return pool;
+  }
+}
@@ -0,0 +1,357 @@
+/* Generates the same matrices as a MatrixGenerator, but fills
+ * a whole row or column at a time, always choosing the line
+ * that has the fewest possible values left.
+ *
+ * For each row that is not yet filled, the search keeps the set
+ * of (distinct) lines of rowTree that still fit the columns
+ * filled so far, and for each column the set of lines of colTree
+ * that fit the rows filled so far.  Filling a line narrows the
+ * sets of all the lines that cross it, and the search backs up
+ * as soon as one of those sets is empty.  A matrix is finished
+ * once all of its rows, or all of its columns, are filled: the
+ * other lines are then forced.
+ *
+ * The matrices come out in a different order than from a
+ * MatrixGenerator, and the search can't be split by prefixes.
+ * So the rows of an implication come out permuted, whether or
+ * not the calculator standardizes (standardizing sorts the lines
+ * of a space only if some are repeated, and otherwise leaves it
+ * as it is), and so do the columns of spaces built from its
+ * rows, such as its dual's columns or the columns of a later
+ * implication.
+ */
+class PropagatingGenerator extends MatrixGenerator
+{
+  private Tree rowTree, colTree;
+  private int nrows, ncols, K;
+
+  // The distinct lines of each tree: the leaf they end at,
+  // and their values.
+  private int rowLeaf[], colLeaf[];
+  private int rowLine[][], colLine[][];
+
+  // Bitsets over the distinct lines.  Row line i is in
+  // rowHas[c*K+v] if its value at column c is v; column
+  // line j is in colHas[r*K+v] if its value at row r is v.
+  private long rowHas[][], colHas[][];
+  private int rowWords, colWords;
+
+  // The search state at each level is a copy of the sets of
+  // all lines: row r's set starts at word r*rowWords, and
+  // column c's at nrows*rowWords + c*colWords.  Level d fills
+  // line[d] (rows are 0..nrows-1, columns follow) with the
+  // values in its set, trying them from value pos[d] on.
+  // A level's copy is only allocated once the search gets
+  // there, since most searches end long before every line
+  // has had a level of its own.
+  private long sets[][];
+  private int line[], pos[];
+  private int level;
+
+  // The distinct line filled into each row and column, or -1
+  private int rowPick[], colPick[];
+  private int filledRows, filledCols;
+
+  // The matrix found by the last successful call to next()
+  private int rowSolution[], colSolution[];
+
+  // The search has not started, or is over
+  private boolean started, done;
+
+  // With no rows or no columns there is nothing to propagate,
+  // so the search is left to the MatrixGenerator.
+  private boolean degenerate;
+
+  /* Constructor */
+
+  PropagatingGenerator(Tree rowTree, Tree colTree)
+  {
+    super(rowTree, colTree);
+    this.rowTree = rowTree;
+    this.colTree = colTree;
+    nrows = colTree.length();
+    ncols = rowTree.length();
+    K = Math.max(rowTree.arity(), colTree.arity());
+
+    degenerate = (nrows == 0 || ncols == 0);
+    if(degenerate) return;
+
+    rowLeaf = rowTree.leaves();
+    rowLine = new int[rowLeaf.length][ncols];
+    for(int i=0;i<rowLeaf.length;i++) rowTree.getLine(rowLeaf[i], rowLine[i]);
+    rowWords = BitMatrix.words(rowLeaf.length);
+
+    colLeaf = colTree.leaves();
+    colLine = new int[colLeaf.length][nrows];
+    for(int j=0;j<colLeaf.length;j++) colTree.getLine(colLeaf[j], colLine[j]);
+    colWords = BitMatrix.words(colLeaf.length);
+
+    rowHas = new long[ncols*K][rowWords];
+    for(int i=0;i<rowLeaf.length;i++)
+      for(int c=0;c<ncols;c++)
+        rowHas[c*K + rowLine[i][c]][i>>>6] |= 1L << i;
+
+    colHas = new long[nrows*K][colWords];
+    for(int j=0;j<colLeaf.length;j++)
+      for(int r=0;r<nrows;r++)
+        colHas[r*K + colLine[j][r]][j>>>6] |= 1L << j;
+
+    int size = nrows*rowWords + ncols*colWords;
+    sets = new long[nrows+ncols+1][];
+    sets[0] = new long[size];
+    line = new int[nrows+ncols];
+    pos = new int[nrows+ncols];
+
+    rowPick = new int[nrows];
+    colPick = new int[ncols];
+    rowSolution = new int[nrows];
+    colSolution = new int[ncols];
+  }
+
+  /* Inspectors */
+
+  int rowIndex(int r)
+  {
+    if(degenerate) return super.rowIndex(r);
+    return rowTree.first(rowLeaf[rowSolution[r]]);
+  }
+
+  int colIndex(int c)
+  {
+    if(degenerate) return super.colIndex(c);
+    return colTree.first(colLeaf[colSolution[c]]);
+  }
+
+  int rowCount(int r)
+  {
+    if(degenerate) return super.rowCount(r);
+    return rowTree.count(rowLeaf[rowSolution[r]]);
+  }
+
+  int colCount(int c)
+  {
+    if(degenerate) return super.colCount(c);
+    return colTree.count(colLeaf[colSolution[c]]);
+  }
+
+  int[] rowIndexes(int r)
+  {
+    if(degenerate) return super.rowIndexes(r);
+    return indexes(rowTree, rowLeaf[rowSolution[r]]);
+  }
+
+  int[] colIndexes(int c)
+  {
+    if(degenerate) return super.colIndexes(c);
+    return indexes(colTree, colLeaf[colSolution[c]]);
+  }
+
+  private static int[] indexes(Tree tree, int leaf)
+  {
+    int result[] = new int[tree.count(leaf)];
+    int i=0;
+    for(int l=tree.data(leaf); l!=Tree.NONE; l=tree.next(l))
+      result[i++] = tree.datum(l);
+    return result;
+  }
+
+  // getCells: As for a MatrixGenerator, the entries of the
+  // matrix in herringbone order.
+  void getCells(int cells[])
+  {
+    if(degenerate) { super.getCells(cells); return;}
+
+    int i=0;
+    for(int k=0; k<nrows && k<ncols; k++) {
+      for(int c=k; c<ncols; c++) cells[i++] = rowLine[rowSolution[k]][c];
+      for(int r=k+1; r<nrows; r++) cells[i++] = rowLine[rowSolution[r]][k];
+    }
+  }
+
+  /* Search */
+
+  boolean next()
+  {
+    if(degenerate) return super.next();
+    if(done) return false;
+
+    if(!started) {
+      started = true;
+      if(!start()) { done = true; return false;}
+      level = 0;
+      choose();
+    }
+
+    while(level >= 0) {
+      checkpoint();
+      int code = line[level];
+      int value = nextValue(sets[level], offset(code), words(code), pos[level]);
+
+      if(value < 0) {
+        // All values of this line are exhausted: back up
+        level--;
+        if(level >= 0) unfill(line[level]);
+        continue;
+      }
+      pos[level] = value+1;
+
+      fill(code, value);
+      if(!propagate(code, value)) {
+        unfill(code);
+        continue;
+      }
+
+      if(filledRows == nrows || filledCols == ncols) {
+        record();
+        unfill(code);
+        return true;
+      }
+
+      level++;
+      choose();
+    }
+
+    done = true;
+    return false;
+  }
+
+  // start: Sets up level 0 with all lines possible everywhere.
+  // Returns false if some line has no possible values at all.
+  private boolean start()
+  {
+    long all[] = sets[0];
+    for(int r=0;r<nrows;r++)
+      fillAll(all, r*rowWords, rowLeaf.length);
+    for(int c=0;c<ncols;c++)
+      fillAll(all, nrows*rowWords + c*colWords, colLeaf.length);
+
+    for(int r=0;r<nrows;r++) rowPick[r] = -1;
+    for(int c=0;c<ncols;c++) colPick[c] = -1;
+    filledRows = filledCols = 0;
+
+    return rowLeaf.length > 0 && colLeaf.length > 0;
+  }
+
+  private static void fillAll(long set[], int offset, int n)
+  {
+    for(int w=0; w<BitMatrix.words(n); w++) {
+      int bits = Math.min(64, n - (w<<6));
+      set[offset+w] = (bits == 64) ? -1L : (1L << bits) - 1;
+    }
+  }
+
+  // choose: Picks the unfilled line with the fewest possible
+  // values as the line to fill at this level.
+  private void choose()
+  {
+    long set[] = sets[level];
+    int best = -1, fewest = Integer.MAX_VALUE;
+    for(int code=0; code<nrows+ncols; code++) {
+      if(picked(code)) continue;
+      int n = 0;
+      for(int w=0, o=offset(code); w<words(code); w++)
+        n += Long.bitCount(set[o+w]);
+      if(n < fewest) { best = code; fewest = n;}
+    }
+    line[level] = best;
+    pos[level] = 0;
+  }
+
+  // propagate: Line code has just been filled with value.  Level
+  // level+1 gets the sets of level, with each crossing line that
+  // is not filled narrowed to agree.  Returns false if one of
+  // them is left with nothing.
+  private boolean propagate(int code, int value)
+  {
+    long from[] = sets[level];
+    if(sets[level+1] == null) sets[level+1] = new long[from.length];
+    long to[] = sets[level+1];
+    System.arraycopy(from, 0, to, 0, from.length);
+
+    if(code < nrows) {
+      int r = code;
+      int values[] = rowLine[value];
+      for(int c=0;c<ncols;c++) {
+        if(colPick[c] >= 0) continue;
+        if(!narrow(to, nrows*rowWords + c*colWords, colWords,
+                   colHas[r*K + values[c]]))
+          return false;
+      }
+    }
+    else {
+      int c = code-nrows;
+      int values[] = colLine[value];
+      for(int r=0;r<nrows;r++) {
+        if(rowPick[r] >= 0) continue;
+        if(!narrow(to, r*rowWords, rowWords, rowHas[c*K + values[r]]))
+          return false;
+      }
+    }
+    return true;
+  }
+
+  // narrow: Intersects set[offset..offset+words-1] with mask.
+  // Returns false if the result is empty.
+  private static boolean narrow(long set[], int offset, int words, long mask[])
+  {
+    long any = 0;
+    for(int w=0;w<words;w++) any |= (set[offset+w] &= mask[w]);
+    return any != 0;
+  }
+
+  // record: Saves the matrix just completed.  The lines not
+  // filled are forced, and their sets (at level+1) hold just
+  // one value.
+  private void record()
+  {
+    long set[] = sets[level+1];
+    for(int r=0;r<nrows;r++)
+      rowSolution[r] = (rowPick[r] >= 0) ? rowPick[r]
+        : nextValue(set, r*rowWords, rowWords, 0);
+    for(int c=0;c<ncols;c++)
+      colSolution[c] = (colPick[c] >= 0) ? colPick[c]
+        : nextValue(set, nrows*rowWords + c*colWords, colWords, 0);
+  }
+
+  private void fill(int code, int value)
+  {
+    if(code < nrows) { rowPick[code] = value; filledRows++;}
+    else { colPick[code-nrows] = value; filledCols++;}
+  }
+
+  private void unfill(int code)
+  {
+    if(code < nrows) { rowPick[code] = -1; filledRows--;}
+    else { colPick[code-nrows] = -1; filledCols--;}
+  }
+
+  private boolean picked(int code)
+  {
+    return (code < nrows) ? rowPick[code] >= 0 : colPick[code-nrows] >= 0;
+  }
+
+  private int offset(int code)
+  {
+    return (code < nrows) ? code*rowWords
+                          : nrows*rowWords + (code-nrows)*colWords;
+  }
+
+  private int words(int code)
+  {
+    return (code < nrows) ? rowWords : colWords;
+  }
+
+  // nextValue: The first member of the set at offset that is
+  // at least from, or -1 if there is none.
+  private static int nextValue(long set[], int offset, int words, int from)
+  {
+    int w = from>>>6;
+    if(w >= words) return -1;
+    long x = set[offset+w] & (-1L << from);
+    while(true) {
+      if(x != 0) return (w<<6) + Long.numberOfTrailingZeros(x);
+      if(++w == words) return -1;
+      x = set[offset+w];
+    }
+  }
+}
@@ -0,0 +1,159 @@
+// A RepeatedMatrix is a matrix whose rows come in runs of
+// identical copies.  Only the distinct rows are stored; run k
+// repeats row index[k] of the distinct matrix, and covers
+// rows starts[k] .. starts[k+1]-1 of this matrix.
+class RepeatedMatrix extends Matrix
+{
+  private Matrix distinct;
+  private int index[];
+  private int starts[];
+  private int nruns;
+
+  /* constructor */
+  RepeatedMatrix(Matrix distinct, int index[], int starts[], int nruns)
+  {
+    this.distinct = distinct;
+    this.index = index;
+    this.starts = starts;
+    this.nruns = nruns;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return starts[nruns];}
+  int ncols() { return distinct.ncols();}
+
+  boolean bits() { return distinct.bits();}
+
+  int entry(int r, int c)
+  {
+    return distinct.entry(index[run(r)], c);
+  }
+
+  void getRow(int r, int line[])
+  {
+    distinct.getRow(index[run(r)], line);
+  }
+
+  void getCol(int c, int line[])
+  {
+    for(int k=0;k<nruns;k++) {
+      int entry = distinct.entry(index[k], c);
+      for(int r=starts[k];r<starts[k+1];r++) line[r] = entry;
+    }
+  }
+
+  int compareRows(int r1, int r2)
+  {
+    return distinct.compareRows(index[run(r1)], index[run(r2)]);
+  }
+
+  Matrix distinct() { return distinct;}
+  int runs() { return nruns;}
+  int runIndex(int k) { return index[k];}
+  int runLength(int k) { return starts[k+1]-starts[k];}
+
+  // run: Finds the run holding row r by binary search
+  private int run(int r)
+  {
+    int l=0, h=nruns-1;
+    while(l<h) {
+      int m = (l+h+1)/2;
+      if(starts[m] <= r) l=m;
+      else h=m-1;
+    }
+    return l;
+  }
+
+  /* Builders */
+
+  // expand: Returns the same rows with every copy present.
+  // Copies share storage where the distinct matrix allows it.
+  Matrix expand()
+  {
+    int nrows = nrows();
+    int ncols = ncols();
+    int rowIndex[] = new int[nrows];
+    for(int k=0;k<nruns;k++)
+      for(int r=starts[k];r<starts[k+1];r++) rowIndex[r] = index[k];
+
+    int colIndex[] = new int[ncols];
+    for(int c=0;c<ncols;c++) colIndex[c] = c;
+
+    return distinct.select(rowIndex, nrows, colIndex, ncols);
+  }
+
+  // rowMajor: Packed rows are wanted as a BitMatrix, so they are
+  // laid out with every copy present.
+  Matrix rowMajor()
+  {
+    return bits() ? expand().rowMajor() : this;
+  }
+
+  Matrix copyTranspose()
+  {
+    return expand().copyTranspose();
+  }
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    int distinctIndex[] = new int[nrows];
+    for(int r=0;r<nrows;r++) distinctIndex[r] = index[run(rowIndex[r])];
+    return distinct.select(distinctIndex, nrows, colIndex, ncols);
+  }
+
+  // repeat: Builds a matrix from the rows of distinct, where the
+  // k-th run repeats row index[k] count[k] times.  Neighbouring
+  // runs of the same row are merged, and a plain matrix is
+  // returned if nothing is repeated.  Runs of no copies are
+  // dropped, and so are the rows of distinct that only they
+  // repeated: every row of the result's distinct() is in it.
+  static Matrix repeat(Matrix distinct, int index[], int count[], int n)
+  {
+    int new_index[] = new int[n];
+    int starts[] = new int[n+1];
+    int nruns = 0;
+    boolean repeated = false;
+    boolean used[] = new boolean[distinct.nrows()];
+
+    long total = 0;
+    for(int k=0;k<n;k++) {
+      if(count[k] == 0) continue;
+      total += count[k];
+      if(total > Integer.MAX_VALUE)
+        throw new TooLarge(total+" rows are too many");
+      used[index[k]] = true;
+      if(nruns > 0 && new_index[nruns-1] == index[k]) {
+        starts[nruns] += count[k];
+      }
+      else {
+        new_index[nruns] = index[k];
+        starts[nruns+1] = starts[nruns] + count[k];
+        nruns++;
+      }
+      if(starts[nruns]-starts[nruns-1] > 1) repeated = true;
+    }
+
+    // Leave out unused rows, renumbering the runs
+    int num_used = 0;
+    for(int r=0;r<used.length;r++) if(used[r]) num_used++;
+    if(num_used < used.length) {
+      int rowIndex[] = new int[num_used];
+      int renumber[] = new int[used.length];
+      for(int r=0, i=0;r<used.length;r++)
+        if(used[r]) { renumber[r] = i; rowIndex[i++] = r;}
+      for(int k=0;k<nruns;k++) new_index[k] = renumber[new_index[k]];
+
+      int colIndex[] = new int[distinct.ncols()];
+      for(int c=0;c<colIndex.length;c++) colIndex[c] = c;
+      distinct = distinct.select(rowIndex, num_used, colIndex, colIndex.length);
+    }
+
+    if(!repeated && nruns == distinct.nrows()) {
+      boolean identity = true;
+      for(int k=0;k<nruns;k++) identity &= (new_index[k] == k);
+      if(identity) return distinct;
+    }
+    return new RepeatedMatrix(distinct, new_index, starts, nruns);
+  }
+}
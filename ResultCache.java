@@ -0,0 +1,173 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A ResultCache remembers the results of operators, so that an
+// expression evaluated again with the same operands (the same
+// Chu objects, not just equal ones) and the same settings is not
+// computed again.  Only the settings that change a result count:
+// K and standardization.  Parallelism and laziness only change
+// how a result is made, and propagation only the order of its
+// rows, so a result made under one of those is reused under any.
+//   The cache holds its operands weakly.  Rebinding a variable
+// gives it a new Chu, and once nothing else holds the old one,
+// the results made from it are thrown out.  (A result that holds
+// its operand, as a view does, keeps its entry until it is pushed
+// out; its size is counted in full, so that is within budget.)
+//   The budget is a rough count of the bytes held by the cached
+// results.  The results used least recently are thrown out first;
+// a result larger than the whole budget is not kept at all.
+class ResultCache
+{
+  private LinkedHashMap<Key,Chu> map;
+  private ReferenceQueue<Chu> collected;  // operands no longer held
+  private long budget, used;
+
+  /* Constructor */
+
+  ResultCache(long budget)
+  {
+    map = new LinkedHashMap<Key,Chu>(16, 0.75f, true);  // in access order
+    collected = new ReferenceQueue<Chu>();
+    this.budget = budget;
+    used = 0;
+  }
+
+  /* Lookup and storage */
+
+  synchronized Chu get(String operator, Chu left, Chu right,
+                       Context context)
+  {
+    expunge();
+    return map.get(new Key(operator, left, right, context, null));
+  }
+
+  synchronized void put(String operator, Chu left, Chu right,
+                        Context context, Chu result)
+  {
+    expunge();
+    long size = size(result);
+    if(size > budget) return;
+
+    Chu old = map.put(new Key(operator, left, right, context, collected),
+                      result);
+    if(old != null) used -= size(old);
+    used += size;
+    trim();
+  }
+
+  synchronized void clear()
+  {
+    map.clear();
+    used = 0;
+  }
+
+  // expunge: Throws out the results whose operands are gone
+  private void expunge()
+  {
+    Operand o;
+    while((o = (Operand)collected.poll()) != null) {
+      Chu result = map.remove(o.key);
+      if(result != null) used -= size(result);
+    }
+  }
+
+  /* Budget */
+
+  synchronized long budget() { return budget;}
+  synchronized long used() { return used;}
+  synchronized int size() { return map.size();}
+
+  synchronized void setBudget(long budget)
+  {
+    this.budget = (budget < 0 ? 0 : budget);
+    trim();
+  }
+
+  // trim: Throws out the least recently used results
+  // until the rest fit in the budget.
+  private void trim()
+  {
+    Iterator<Map.Entry<Key,Chu>> i = map.entrySet().iterator();
+    while(used > budget && i.hasNext()) {
+      used -= size(i.next().getValue());
+      i.remove();
+    }
+  }
+
+  // size: The bytes a space's entries take, packed as a Matrix
+  // would pack them, plus a little for the objects themselves.
+  // Views and lazy matrices are counted as if they were built.
+  static long size(Chu chu)
+  {
+    long entries = (long)chu.nrows() * chu.ncols();
+    int bits = (chu.K() <= 2) ? 1 : (chu.K() <= 256) ? 8 : 32;
+    return entries*bits/8 + 64;
+  }
+
+  /* Keys */
+
+  // A Key compares its operands by identity, and its operator,
+  // K and standardization by value.  right is null for unary
+  // operators.  Keys in the map register their operands with the
+  // cache's queue; keys made for lookups don't.  Once an operand
+  // has been collected its key equals only itself.
+  private static class Key
+  {
+    private String operator;
+    private Operand left, right;
+    private int k;
+    private boolean standardization;
+    private int hash;
+
+    Key(String operator, Chu left, Chu right, Context context,
+        ReferenceQueue<Chu> queue)
+    {
+      this.operator = operator;
+      this.left = new Operand(left, this, queue);
+      this.right = (right == null) ? null : new Operand(right, this, queue);
+      k = context.k;
+      standardization = context.standardization;
+
+      hash = operator.hashCode();
+      hash = 31*hash + System.identityHashCode(left);
+      hash = 31*hash + System.identityHashCode(right);
+      hash = 31*hash + k;
+      hash = 31*hash + (standardization ? 1 : 0);
+    }
+
+    public boolean equals(Object o)
+    {
+      if(o == this) return true;
+      if(!(o instanceof Key)) return false;
+      Key key = (Key)o;
+      return hash == key.hash && operator.equals(key.operator) &&
+             same(left, key.left) && same(right, key.right) &&
+             k == key.k && standardization == key.standardization;
+    }
+
+    public int hashCode() { return hash;}
+
+    private static boolean same(Operand a, Operand b)
+    {
+      if(a == null || b == null) return a == b;
+      Chu chu = a.get();
+      return chu != null && chu == b.get();
+    }
+  }
+
+  // An Operand holds an operand of a Key weakly, and knows
+  // its Key so that the entry can be found once it is gone.
+  private static class Operand extends WeakReference<Chu>
+  {
+    Key key;
+
+    Operand(Chu chu, Key key, ReferenceQueue<Chu> queue)
+    {
+      super(chu, queue);
+      this.key = key;
+    }
+  }
+}
@@ -1,8 +1,17 @@
-import java.util.StringTokenizer;
+import java.util.Hashtable;
 
 abstract class Statement implements Executable
 {
   static Statement parse(String statementText) throws SyntaxException
+  {
+    return parse(statementText, new Hashtable<String,Expression>());
+  }
+
+  // parse: The same, sharing expression nodes through nodes
+  // (see Expression.parse).
+  static Statement parse(String statementText,
+                         Hashtable<String,Expression> nodes)
+    throws SyntaxException
   {
     int index = statementText.indexOf('=');
 
@@ -19,13 +28,18 @@ abstract class Statement implements Executable
     else {
       String lhs = statementText.substring(0, index).trim();
       String rhs = statementText.substring(index+1).trim();
-      return new AssignStatement(lhs,rhs);
+      return new AssignStatement(lhs,rhs,nodes);
     }
   }
 
   abstract String show();
 
   public abstract void exec(Calc c) throws ExecutionException;
+
+  // barrier: Must this statement run alone, after everything before
+  // it and before everything after it?  Statements that change the
+  // Context (or might) are barriers; assignments are not.
+  boolean barrier() { return true;}
 }
 
 class SetKStatement extends Statement
@@ -62,25 +76,3 @@ class InvokeStatement extends Statement
     calc.lookupExecutable(executableName).exec(calc);
   }
 }
-
-class AssignStatement extends Statement
-{
-  String lhs;
-  Expression rhs;
-
-  AssignStatement(String lhs, String rhs) throws SyntaxException
-  {
-    this.lhs = lhs;
-    this.rhs = Expression.parse(rhs);
-  }
-
-  String show()
-  {
-    return lhs + " gets " + rhs.show();
-  }
-
-  public void exec(Calc calc) throws ExecutionException
-  {
-    calc.bindVariable(lhs, rhs.eval(calc));
-  }
-}
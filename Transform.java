@@ -0,0 +1,45 @@
+// A Transform is one Chu transform from A to B: a matrix whose
+// row r is row row(r) of B, and whose column c is column col(c)
+// of A.  Only the indexes are held; entries are read from B.
+// Transforms are never changed once they have been built.
+class Transform
+{
+  private Chu B;
+  private int rows[];
+  private int cols[];
+
+  /* constructor */
+  Transform(Chu B, int rows[], int cols[])
+  {
+    this.B = B;
+    this.rows = rows;
+    this.cols = cols;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return rows.length;}
+  int ncols() { return cols.length;}
+  int row(int r) { return rows[r];}
+  int col(int c) { return cols[c];}
+  int entry(int r, int c) { return B.entry(rows[r], c);}
+
+  // getCells: Copies the matrix, row after row, into line.
+  // This is the row of A -o B that the transform gives.
+  void getCells(int line[])
+  {
+    int ncols = cols.length;
+    for(int r=0;r<rows.length;r++)
+      for(int c=0;c<ncols;c++)
+        line[r*ncols+c] = B.entry(rows[r], c);
+  }
+
+  public String toString()
+  {
+    StringBuffer out = new StringBuffer("rows");
+    for(int r=0;r<rows.length;r++) out.append(' ').append(rows[r]);
+    out.append(" cols");
+    for(int c=0;c<cols.length;c++) out.append(' ').append(cols[c]);
+    return out.toString();
+  }
+}
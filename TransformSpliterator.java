@@ -0,0 +1,173 @@
+import java.util.Spliterator;
+import java.util.Vector;
+import java.util.function.Consumer;
+
+/* Lists the Chu transforms from A to B, one at a time, without
+ * holding more than one matrix of the search in memory.
+ *
+ * The transforms come in the order of the rows of A -o B (as
+ * built by Chu.implication without standardization): a matrix
+ * found several times, because A has repeated columns or B has
+ * repeated rows, gives one Transform for each choice of rows
+ * and columns.
+ *
+ * The search is covered by a list of prefixes, as used by the
+ * prefix constructor of MatrixGenerator.  trySplit hands out the
+ * first half of the prefixes not yet searched, making the
+ * prefixes longer when there is only one left.
+ */
+class TransformSpliterator implements Spliterator<Transform>
+{
+  private Chu B;
+  private Tree rowTree, colTree;
+
+  // This covers prefixes[lo..hi-1].  If MG is not null
+  // it is searching (or has searched part of) prefixes[lo].
+  private Vector<int[]> prefixes;
+  private int lo, hi;
+  private MatrixGenerator MG;
+
+  // The choices of rows and columns for the matrix MG found last,
+  // and the choice to use for the next Transform.  pending is
+  // true while some choices remain.
+  private int rowChoices[][], colChoices[][];
+  private int rowPick[], colPick[];
+  private boolean pending;
+
+  private long estimate;
+
+  /* constructors */
+
+  TransformSpliterator(Chu A, Chu B)
+  {
+    this(B, B.rowTree(), A.colTree(), new Vector<int[]>(), 0, 1, Long.MAX_VALUE);
+    prefixes.addElement(new int[0]);
+  }
+
+  private TransformSpliterator(Chu B, Tree rowTree, Tree colTree,
+                               Vector<int[]> prefixes, int lo, int hi,
+                               long estimate)
+  {
+    this.B = B;
+    this.rowTree = rowTree;
+    this.colTree = colTree;
+    this.prefixes = prefixes;
+    this.lo = lo;
+    this.hi = hi;
+    this.estimate = estimate;
+  }
+
+  /* Spliterator */
+
+  public boolean tryAdvance(Consumer<? super Transform> action)
+  {
+    while(!pending) {
+      if(MG == null) {
+        if(lo == hi) return false;
+        MG = new MatrixGenerator(rowTree, colTree, prefixes.elementAt(lo));
+      }
+      if(MG.next()) start();
+      else {
+        MG = null;
+        lo++;
+      }
+    }
+
+    int rows[] = new int[rowPick.length];
+    int cols[] = new int[colPick.length];
+    for(int r=0;r<rows.length;r++) rows[r] = rowChoices[r][rowPick[r]];
+    for(int c=0;c<cols.length;c++) cols[c] = colChoices[c][colPick[c]];
+    step();
+
+    action.accept(new Transform(B, rows, cols));
+    return true;
+  }
+
+  public Spliterator<Transform> trySplit()
+  {
+    if(hi-lo == 1 && MG == null) refine();
+    if(hi-lo < 2) return null;
+
+    int mid = lo + (hi-lo)/2;
+    estimate >>>= 1;
+
+    TransformSpliterator first =
+      new TransformSpliterator(B, rowTree, colTree, prefixes, lo, mid,
+                               estimate);
+    first.MG = MG;
+    first.rowChoices = rowChoices;
+    first.colChoices = colChoices;
+    first.rowPick = rowPick;
+    first.colPick = colPick;
+    first.pending = pending;
+
+    lo = mid;
+    MG = null;
+    pending = false;
+    return first;
+  }
+
+  public long estimateSize() { return estimate;}
+
+  public int characteristics()
+  {
+    return ORDERED | NONNULL | IMMUTABLE;
+  }
+
+  /* Search */
+
+  // start: Sets up the choices for the matrix MG has just found.
+  // A matrix with no choices for some line gives no Transforms.
+  private void start()
+  {
+    int nrows = MG.nrows(), ncols = MG.ncols();
+    rowChoices = new int[nrows][];
+    colChoices = new int[ncols][];
+    pending = true;
+    for(int r=0;r<nrows;r++) {
+      rowChoices[r] = MG.rowIndexes(r);
+      if(rowChoices[r].length == 0) pending = false;
+    }
+    for(int c=0;c<ncols;c++) {
+      colChoices[c] = MG.colIndexes(c);
+      if(colChoices[c].length == 0) pending = false;
+    }
+    rowPick = new int[nrows];
+    colPick = new int[ncols];
+  }
+
+  // step: Moves to the next choice, like an odometer whose
+  // last column turns fastest.  Clears pending after the last.
+  private void step()
+  {
+    for(int c=colPick.length-1;c>=0;c--) {
+      if(++colPick[c] < colChoices[c].length) return;
+      colPick[c] = 0;
+    }
+    for(int r=rowPick.length-1;r>=0;r--) {
+      if(++rowPick[r] < rowChoices[r].length) return;
+      rowPick[r] = 0;
+    }
+    pending = false;
+  }
+
+  // refine: Replaces the one prefix left by all of its
+  // extensions that are one cell longer, or several cells
+  // longer if that is what it takes to get more than one.
+  private void refine()
+  {
+    int prefix[] = prefixes.elementAt(lo);
+    int cells = rowTree.length()*colTree.length();
+    Vector<int[]> longer;
+    int length = prefix.length;
+    do {
+      if(length == cells) return;
+      length++;
+      longer = (new MatrixGenerator(rowTree, colTree, prefix)).prefixes(length);
+    } while(longer.size() == 1);
+
+    prefixes = longer;
+    lo = 0;
+    hi = longer.size();
+  }
+}
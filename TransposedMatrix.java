@@ -0,0 +1,37 @@
+// A TransposedMatrix is a view of another matrix with rows and
+// columns exchanged.  It shares the storage of the original, so
+// building one costs nothing.  Code that needs the rows laid out
+// as rows calls rowMajor(), which makes a copy.
+class TransposedMatrix extends Matrix
+{
+  private Matrix original;
+
+  /* constructor */
+  TransposedMatrix(Matrix original)
+  {
+    this.original = original;
+  }
+
+  /* Inspectors */
+
+  int nrows() { return original.ncols();}
+  int ncols() { return original.nrows();}
+  int entry(int r, int c) { return original.entry(c,r);}
+  boolean bits() { return original.bits();}
+
+  void getRow(int r, int line[]) { original.getCol(r, line);}
+  void getCol(int c, int line[]) { original.getRow(c, line);}
+
+  /* Builders */
+
+  Matrix transpose() { return original;}
+
+  Matrix rowMajor() { return original.copyTranspose();}
+
+  Matrix copyTranspose() { return original.rowMajor();}
+
+  Matrix select(int rowIndex[], int nrows, int colIndex[], int ncols)
+  {
+    return original.select(colIndex, ncols, rowIndex, nrows).transpose();
+  }
+}
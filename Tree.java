@@ -1,57 +1,187 @@
+import java.util.Arrays;
+
 // A tree is used to store a collection of equal-length "lines"
 // The lines are sequences of integers in the range 0..arity-1
-
+//
+// Each node of the tree represents a prefix of some of the lines;
+// its children are the possible extensions of that prefix.  The
+// nodes are numbered from 0 (the empty prefix, at the top) and
+// stored in parallel arrays rather than as objects:
+//  parent[n]  the node for this prefix sans last element
+//  branch[n]  the value of the last element
+//  kids[n]    where the children of n start in children[],
+//             (arity slots, allocated only for non-leaves)
+//  head[n]    the list of indexes of lines ending at n
+//  count[n]   the length of that list
+// The lists of indexes are linked through datum[] and next[],
+// most recently added first.  Missing nodes and the ends of
+// lists are marked by NONE.
 class Tree
 {
+  static final int NONE = -1;
+
   private int arity;
   private int length;
-  private Node top;
+
+  private int nnodes;
+  private int parent[], branch[], kids[], head[], count[];
+
+  private int nchildren;
+  private int children[];
+
+  private int ndata;
+  private int datum[], next[];
 
   /* constructor */
   Tree(int arity,int length)
   {
     this.arity = arity;
     this.length = length;
-    this.top = new Node(null,0);
+
+    parent = new int[16];
+    branch = new int[16];
+    kids = new int[16];
+    head = new int[16];
+    count = new int[16];
+    children = new int[16*arity];
+    datum = new int[16];
+    next = new int[16];
+
+    nnodes = 0;
+    nchildren = 0;
+    ndata = 0;
+    newNode(NONE, 0);
   }
 
   /* inspectors */
   final int arity() { return arity;}
   final int length() { return length;}
-  final Node top() { return top;}
+  final int top() { return 0;}
+
+  // child: NONE also for a branch beyond the arity, which no
+  // line can take (a search may ask, when its trees differ in K)
+  final int child(int node, int branch)
+  {
+    int k = kids[node];
+    return (k == NONE || branch >= arity) ? NONE : children[k+branch];
+  }
+
+  final int parent(int node) { return parent[node];}
+  final int branch(int node) { return branch[node];}
+
+  // data: The first link in the list of lines ending at node.
+  // datum and next read a link and step to the next one.
+  final int data(int node) { return head[node];}
+  final int datum(int link) { return datum[link];}
+  final int next(int link) { return next[link];}
 
-  // findLine: Returns a linked list of the
-  // indexes of all lines matching the given line.
-  Link findLine(int line[])
+  // count: The number of lines ending at node
+  final int count(int node) { return count[node];}
+
+  // first: The index of the line most recently added at node,
+  // or NONE if there is none.
+  final int first(int node)
+  {
+    int link = head[node];
+    return (link == NONE) ? NONE : datum[link];
+  }
+
+  // findLine: Returns the index of the line most recently
+  // added that matches the given line, or NONE.
+  int findLine(int line[])
   {
-    if(line.length != length) return null;
+    if(line.length != length) return NONE;
 
-    Node current=top;
+    int current=0;
 
     for(int loc=0;loc<line.length;loc++) {
-      current = current.child(line[loc]);
-      if (current==null) return null;
+      current = child(current, line[loc]);
+      if (current==NONE) return NONE;
+    }
+    return first(current);
+  }
+
+  // leaves: The nodes at which lines end, in the order in
+  // which their first lines were added.
+  int[] leaves()
+  {
+    int n=0;
+    for(int node=0;node<nnodes;node++)
+      if(head[node] != NONE) n++;
+    int result[] = new int[n];
+    n=0;
+    for(int node=0;node<nnodes;node++)
+      if(head[node] != NONE) result[n++] = node;
+    return result;
+  }
+
+  // getLine: Copies the line ending at the given leaf into line
+  void getLine(int leaf, int line[])
+  {
+    for(int loc=length-1; loc>=0; loc--) {
+      line[loc] = branch[leaf];
+      leaf = parent[leaf];
     }
-    return current.data();
   }
 
-  /* mutator */
+  /* mutators */
 
   // addLine: Inserts the given line at the given index.
-  // Returns a linked list of the indexes of all other
-  // lines which match the new line.
-  Link addLine(int line[], int index)
+  // Returns the node at which the line ends.
+  int addLine(int line[], int index)
   {
-    if(line.length != length) return null;
+    if(line.length != length) return NONE;
 
-    Node current=top;
+    int current=0;
 
     for(int loc=0; loc<line.length; loc++)
-      current = current.grow(line[loc], arity);
+      current = grow(current, line[loc]);
 
-    Link result = current.data();
-    current.addDatum(index);
-    return result;
+    if(ndata == datum.length) {
+      datum = Arrays.copyOf(datum, 2*ndata);
+      next = Arrays.copyOf(next, 2*ndata);
+    }
+    datum[ndata] = index;
+    next[ndata] = head[current];
+    head[current] = ndata++;
+    count[current]++;
+    return current;
+  }
+
+  // grow: Extend the prefix at node using the given branch.
+  // Return the node representing the extended prefix.
+  private int grow(int node, int branch)
+  {
+    if(kids[node] == NONE) {
+      if(nchildren+arity > children.length)
+        children = Arrays.copyOf(children,
+                                 Math.max(2*children.length, nchildren+arity));
+      Arrays.fill(children, nchildren, nchildren+arity, NONE);
+      kids[node] = nchildren;
+      nchildren += arity;
+    }
+    int slot = kids[node]+branch;
+    if(children[slot] == NONE)
+      children[slot] = newNode(node, branch);
+    return children[slot];
+  }
+
+  private int newNode(int parent, int branch)
+  {
+    if(nnodes == this.parent.length) {
+      int capacity = 2*nnodes;
+      this.parent = Arrays.copyOf(this.parent, capacity);
+      this.branch = Arrays.copyOf(this.branch, capacity);
+      kids = Arrays.copyOf(kids, capacity);
+      head = Arrays.copyOf(head, capacity);
+      count = Arrays.copyOf(count, capacity);
+    }
+    this.parent[nnodes] = parent;
+    this.branch[nnodes] = branch;
+    kids[nnodes] = NONE;
+    head[nnodes] = NONE;
+    count[nnodes] = 0;
+    return nnodes++;
   }
 
   /* for debugging purposes only */
@@ -60,15 +190,21 @@ class Tree
   {
     System.out.println("ARITY "+arity);
     System.out.println("LENGTH "+length);
-    top.show("");
+    show(0, "");
   }
-}
-
-
-
-
-
-
-
-
 
+  void show(int node, String pad)
+  {
+    for(int l=head[node]; l!=NONE; l=next[l])
+      System.out.println(pad + "LIST " + Integer.toString(datum[l]));
+
+    for(int i=0;i<arity;i++) {
+      int c = child(node, i);
+      if(c != NONE) {
+        System.out.println(pad + "Child " + Integer.toString(i));
+        show(c, pad + " ");
+        System.out.println(pad + "EndChild " + Integer.toString(i));
+      }
+    }
+  }
+}